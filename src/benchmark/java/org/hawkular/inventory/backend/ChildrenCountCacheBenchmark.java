@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.Observable;
+
+/**
+ * Compares the per-parent locking of the child slots in {@link ChildrenCountCache} with the single global lock of
+ * the original implementation.
+ *
+ * <p>Each invocation runs twice as many threads as there are CPUs, each allocating and then freeing the slots of the
+ * children of its own feed, like the parallel syncs of different feeds do.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ChildrenCountCacheBenchmark {
+
+    /**
+     * The number of slots each thread allocates per invocation.
+     */
+    @Param({"1000", "10000"})
+    public int slotsPerThread;
+
+    private final int threads = Runtime.getRuntime().availableProcessors() * 2;
+    private List<CanonicalPath> parents;
+    private ExecutorService executor;
+    private ChildrenCountCache perParentLocks;
+    private GloballySynchronizedCache globalLock;
+
+    @Setup
+    public void setUp() {
+        parents = new ArrayList<>(threads);
+        for (int i = 0; i < threads; ++i) {
+            parents.add(CanonicalPath.fromString("/t;t/f;f" + i));
+        }
+
+        executor = Executors.newFixedThreadPool(threads);
+        perParentLocks = new ChildrenCountCache(p -> Observable.empty());
+        globalLock = new GloballySynchronizedCache();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int perParentLocks() throws Exception {
+        return run(parent -> {
+            int sum = 0;
+            int[] slots = new int[slotsPerThread];
+            for (int i = 0; i < slotsPerThread; ++i) {
+                slots[i] = perParentLocks.allocateSlot(parent).toBlocking().single();
+                sum += slots[i];
+            }
+            for (int slot : slots) {
+                perParentLocks.freeSlot(parent, slot);
+            }
+            return sum;
+        });
+    }
+
+    @Benchmark
+    public int globalLock() throws Exception {
+        return run(parent -> {
+            int sum = 0;
+            int[] slots = new int[slotsPerThread];
+            for (int i = 0; i < slotsPerThread; ++i) {
+                slots[i] = globalLock.allocateSlot(parent);
+                sum += slots[i];
+            }
+            for (int slot : slots) {
+                globalLock.freeSlot(parent, slot);
+            }
+            return sum;
+        });
+    }
+
+    private int run(ThreadTask task) throws Exception {
+        List<Future<Integer>> results = new ArrayList<>(threads);
+        for (CanonicalPath parent : parents) {
+            results.add(executor.submit((Callable<Integer>) () -> task.run(parent)));
+        }
+
+        int sum = 0;
+        for (Future<Integer> result : results) {
+            sum += result.get();
+        }
+        return sum;
+    }
+
+    private interface ThreadTask {
+        int run(CanonicalPath parent) throws Exception;
+    }
+
+    /**
+     * The gist of the original implementation - a single lock guarding the slots of all the entities.
+     */
+    private static final class GloballySynchronizedCache {
+        private final Map<CanonicalPath, BitSet> usedSlots = new HashMap<>();
+
+        int allocateSlot(CanonicalPath parentPath) {
+            synchronized (usedSlots) {
+                BitSet used = usedSlots.computeIfAbsent(parentPath, any -> new BitSet());
+                int slot = used.nextClearBit(1);
+                used.set(slot);
+                return slot;
+            }
+        }
+
+        void freeSlot(CanonicalPath parentPath, int slot) {
+            synchronized (usedSlots) {
+                BitSet used = usedSlots.get(parentPath);
+                if (used != null) {
+                    used.clear(slot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the closed form computation of the intervals of the children of wide trees with the original iterative
+ * computation doing one mediant per each child index.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FareySequenceBenchmark {
+
+    /**
+     * The index of the child among its siblings, i.e. how wide the tree is.
+     */
+    @Param({"10", "1000", "10000"})
+    public int childIndex;
+
+    private List<Integer> treePath;
+
+    @Setup
+    public void setUp() {
+        treePath = Arrays.asList(1, 5, childIndex);
+    }
+
+    @Benchmark
+    public FareySequence.Interval closedForm() {
+        return FareySequence.intervalForPath(treePath);
+    }
+
+    @Benchmark
+    public FareySequence.Interval iterative() {
+        return iterativeIntervalForPath(treePath);
+    }
+
+    /**
+     * The original implementation doing one mediant per step.
+     */
+    private static FareySequence.Interval iterativeIntervalForPath(List<Integer> treePath) {
+        FareySequence.RationalNumber low = new FareySequence.RationalNumber(1, 2);
+        FareySequence.RationalNumber high = new FareySequence.RationalNumber(1, 1);
+
+        for (int treeIdx : treePath) {
+            FareySequence.RationalNumber lastHigh = high;
+            for (long ti = 0; ti < treeIdx; ++ti) {
+                lastHigh = high;
+                high = high.mediant(low);
+            }
+
+            low = high;
+            high = lastHigh;
+        }
+
+        return new FareySequence.Interval(low, high);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading and binding the paths of the same subtree over and over through the {@link PathCache} with
+ * parsing and rendering them each time.
+ *
+ * <p>The difference is mainly in the allocations, so run it with the GC profiler to see the allocation rates:
+ * <pre>
+ * mvn -Pbenchmarks verify -Dbenchmark.includes=PathCacheBenchmark -Dbenchmark.options="-prof gc"
+ * </pre>
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PathCacheBenchmark {
+    private static final int ENTITIES = 50_000;
+
+    private List<String> rows;
+    private PathCache cache;
+
+    @Setup
+    public void setUp() {
+        rows = new ArrayList<>(ENTITIES);
+        for (int i = 0; i < ENTITIES; ++i) {
+            rows.add("/t;t/f;f/r;r" + (i / 100) + "/m;m" + i);
+        }
+
+        cache = new PathCache(ENTITIES);
+    }
+
+    @Benchmark
+    public int fromStringToString() {
+        int sum = 0;
+        for (String row : rows) {
+            sum += CanonicalPath.fromString(row).toString().length();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int cached() {
+        int sum = 0;
+        for (String row : rows) {
+            sum += cache.render(cache.parse(row)).length();
+        }
+        return sum;
+    }
+}
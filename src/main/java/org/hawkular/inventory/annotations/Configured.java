@@ -30,7 +30,7 @@ import javax.inject.Qualifier;
  */
 @Qualifier
 @Documented
-@Target({ElementType.FIELD, ElementType.METHOD, ElementType.TYPE})
+@Target({ElementType.FIELD, ElementType.METHOD, ElementType.PARAMETER, ElementType.TYPE})
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Configured {
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+
+import rx.Observable;
+
+/**
+ * Leases blocks of the indices of the children of entities to this inventory node, so that several nodes sharing the
+ * same Cassandra cluster can create the children of the same entity without handing out any index twice.
+ *
+ * <p>The first index not leased to any node yet is stored per parent in the {@code childIndexLease} table and is
+ * advanced using lightweight transactions. The indices that a node leased but didn't use, as well as the indices of
+ * the deleted children, are recycled through the {@code recycledChildIndices} table. A recycled block is claimed by
+ * a conditional delete, so it is only ever handed to a single node.
+ *
+ * <p>When an entity is deleted, its recycled indices are deleted with it, but its row in the {@code childIndexLease}
+ * table is kept. Other nodes can still hold unused blocks leased before the deletion, so if an entity with the same
+ * path was created again and its leases started over from its first unused index, the same index could be handed to
+ * two nodes. With the row kept, the new leases continue above all the indices ever leased for the path.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+final class ChildIndexLeases {
+    private static final int MAX_LEASE_ATTEMPTS = 10;
+    /**
+     * The number of recycled blocks read at once when looking for one to claim.
+     */
+    private static final int RECYCLED_BLOCKS_FETCH_SIZE = 10;
+
+    private final Statements statements;
+    private final int blockSize;
+
+    ChildIndexLeases(Statements statements, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("The block size must be positive.");
+        }
+
+        this.statements = statements;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Leases a block of indices of the children of the entity. Recycled indices are preferred over new ones.
+     *
+     * @param firstUnused emits the index following the highest index of the existing children of the entity. Only
+     *                    subscribed to when the indices of the children of the entity are leased for the first time.
+     */
+    public Observable<Block> lease(CanonicalPath parent, Observable<Integer> firstUnused) {
+        String parentPath = parent.toString();
+
+        return claimRecycled(parentPath)
+                .switchIfEmpty(Observable.defer(() -> leaseNew(parentPath, firstUnused, MAX_LEASE_ATTEMPTS)));
+    }
+
+    /**
+     * Makes the indices available for leasing again.
+     */
+    public Observable<Void> recycle(CanonicalPath parent, int fromIndex, int toIndex) {
+        return statements.insertRecycledChildIndices(parent.toString(), fromIndex, toIndex);
+    }
+
+    private Observable<Block> claimRecycled(String parentPath) {
+        return statements.findRecycledChildIndices(parentPath, RECYCLED_BLOCKS_FETCH_SIZE)
+                .concatMap(r -> {
+                    int fromIndex = r.getInt("fromIndex");
+                    int toIndex = r.getInt("toIndex");
+
+                    return statements.claimRecycledChildIndices(parentPath, fromIndex)
+                            .filter(claimed -> claimed)
+                            .map(claimed -> new Block(fromIndex, toIndex));
+                })
+                .take(1);
+    }
+
+    private Observable<Block> leaseNew(String parentPath, Observable<Integer> firstUnused, int attemptsLeft) {
+        if (attemptsLeft == 0) {
+            return Observable.error(new IllegalStateException("Failed to lease the indices of the children of "
+                    + parentPath + ". Other nodes kept leasing them at the same time."));
+        }
+
+        //null means that some other node was faster and we need to try again
+        return statements.findChildIndexLease(parentPath)
+                .map(r -> r.getInt("nextUnused"))
+                .concatMap(next -> statements.advanceChildIndexLease(parentPath, next + blockSize, next)
+                        .map(applied -> applied ? new Block(next, next + blockSize) : null))
+                .switchIfEmpty(Observable.defer(() -> firstUnused.concatMap(first ->
+                        statements.createChildIndexLease(parentPath, first + blockSize)
+                                .map(applied -> applied ? new Block(first, first + blockSize) : null))))
+                .concatMap(block -> block == null
+                        ? leaseNew(parentPath, firstUnused, attemptsLeft - 1)
+                        : Observable.just(block));
+    }
+
+    /**
+     * A range of indices, {@code fromIndex} inclusive, {@code toIndex} exclusive.
+     */
+    static final class Block {
+        final int fromIndex;
+        final int toIndex;
+
+        Block(int fromIndex, int toIndex) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override public String toString() {
+            return "[" + fromIndex + ", " + toIndex + ")";
+        }
+    }
+}
@@ -16,70 +16,364 @@
  */
 package org.hawkular.inventory.backend;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
+import org.hawkular.inventory.logging.Log;
 import org.hawkular.inventory.paths.CanonicalPath;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import rx.Observable;
+import rx.Subscription;
+
 /**
- * This implements "atomic counters" to store the number of children of each entity in the entity tree.
+ * This implements "atomic counters" to allocate the indices of the children of each entity in the entity tree.
+ *
+ * <p>The indices of the deleted children are freed and the smallest free index is always handed out first, so that
+ * the indices (and therefore the sizes of the intervals of the children) don't grow with the churn of the children.
+ * The free indices are not stored anywhere but rather computed from the gaps in the indices of the existing children
+ * in the entity tree, so they survive restarts without any additional writes.
  *
- * <p>This does NOT WORK in a clustered environment and will need to be replaced by some kind of true distributed
- * counter when inventory is deployed in a distributed fashion. JGroups counter service lends itself for this purpose.
+ * <p>The slots of an entity are only loaded from the entity tree when the first child is created under it and are
+ * forgotten again when no child has been created for a while. The slots of each entity are guarded by their own
+ * lock, so only the concurrent creations of the children of the same entity contend with each other.
+ *
+ * <p>The above only works with a single inventory node. When several nodes share the same Cassandra cluster, the
+ * indices are instead {@link ChildIndexLeases leased} from Cassandra in blocks and handed out locally until the block
+ * is used up. The leased indices the node didn't use are recycled when the entity is forgotten, as are the indices of
+ * the deleted children. The indices leased by a node that dies are lost, which only leaves gaps among the children.
  *
  * @author Lukas Krejci
  * @since 2.0.0
  */
 final class ChildrenCountCache {
+    /**
+     * The slots of the entities no child was created under for this long are forgotten. This needs to be long enough
+     * for any write of a child to finish, so that the reloaded slots always see all the children.
+     */
+    private static final long COLD_AFTER_MINUTES = 10;
 
-    private final Map<CanonicalPath, Integer> childCounts = new HashMap<>();
+    private final Function<CanonicalPath, Observable<Integer>> childIndices;
+    private final Cache<CanonicalPath, Observable<Slots>> childSlots = Caffeine.newBuilder()
+            .expireAfterAccess(COLD_AFTER_MINUTES, TimeUnit.MINUTES)
+            .build();
 
-    public void initialize(Statements statements) {
-        synchronized (childCounts) {
-            childCounts.clear();
-            Iterator<CanonicalPath> paths = statements.getAllEntityPaths()
-                    .map(r -> CanonicalPath.fromString(r.getString(0)))
-                    .toBlocking().getIterator();
+    /**
+     * Null if the indices are allocated locally.
+     */
+    private final ChildIndexLeases leases;
+    private final Cache<CanonicalPath, LeasedSlots> leasedSlots;
+    /**
+     * Caffeine only expires the entries as a side effect of other cache operations, so without this, the leases of a
+     * node that stopped creating entities would never be given back.
+     */
+    private final Subscription expiredLeasesCleanup;
 
-            while (paths.hasNext()) {
-                CanonicalPath cp = paths.next();
+    /**
+     * @param childIndices reads the indices of the existing children of an entity from the entity tree
+     */
+    ChildrenCountCache(Function<CanonicalPath, Observable<Integer>> childIndices) {
+        this(childIndices, null);
+    }
 
-                CanonicalPath parent = cp.up();
+    /**
+     * @param childIndices reads the indices of the existing children of an entity from the entity tree
+     * @param leases       the leases of the blocks of indices or null to allocate the indices locally
+     */
+    ChildrenCountCache(Function<CanonicalPath, Observable<Integer>> childIndices, ChildIndexLeases leases) {
+        this.childIndices = childIndices;
+        this.leases = leases;
+        //the explicitly removed slots are released by whoever removed them and the slots are never replaced, because
+        //they're only ever put if absent. Whatever else removes them, e.g. the expiration or the garbage collection,
+        //leaves the release to us.
+        this.leasedSlots = Caffeine.newBuilder()
+                .expireAfterAccess(COLD_AFTER_MINUTES, TimeUnit.MINUTES)
+                .<CanonicalPath, LeasedSlots>removalListener((p, slots, cause) -> {
+                    if (slots != null && cause != RemovalCause.EXPLICIT && cause != RemovalCause.REPLACED) {
+                        recycleInBackground(p, slots.release());
+                    }
+                })
+                .build();
+        this.expiredLeasesCleanup = leases == null
+                ? null
+                : Observable.interval(COLD_AFTER_MINUTES, COLD_AFTER_MINUTES, TimeUnit.MINUTES)
+                .subscribe(any -> leasedSlots.cleanUp());
+    }
+
+    /**
+     * @return the smallest index not used by any child of the entity or, if the indices are leased, any index leased
+     * to this node and not used yet
+     */
+    public Observable<Integer> allocateSlot(CanonicalPath parentPath) {
+        if (leases == null) {
+            return slotsOf(parentPath).map(Slots::allocate);
+        }
 
-                incrementAndGetNonSynced(parent);
-                initParents(parent);
+        return Observable.defer(() -> {
+            LeasedSlots slots = leasedSlots.get(parentPath, p -> new LeasedSlots(false));
+            int slot = slots.take();
+            if (slot == LeasedSlots.RELEASED) {
+                //the slots were forgotten in the meantime, so try again with the fresh ones
+                return allocateSlot(parentPath);
+            } else if (slot != LeasedSlots.NONE) {
+                return Observable.just(slot);
             }
+
+            //the concurrent allocations all wait for the same lease and then compete for the leased indices
+            return slots.leasing(() -> leases.lease(parentPath, firstUnusedIndex(parentPath, slots))
+                    .doOnNext(block -> {
+                        if (!slots.add(block)) {
+                            recycleInBackground(parentPath, Collections.singletonList(block));
+                        }
+                    }))
+                    .concatMap(block -> allocateSlot(parentPath));
+        });
+    }
+
+    /**
+     * Declares that the entity is being created, so that the slots of its children don't need to be loaded.
+     */
+    public void created(CanonicalPath entityPath) {
+        if (leases == null) {
+            childSlots.asMap().putIfAbsent(entityPath, Observable.just(new Slots()));
+        } else {
+            leasedSlots.asMap().putIfAbsent(entityPath, new LeasedSlots(true));
         }
     }
 
-    public int incrementAndGet(CanonicalPath parentPath) {
-        synchronized (childCounts) {
-            return incrementAndGetNonSynced(parentPath);
+    /**
+     * Forgets the child slots of the entity and all its descendants and frees the slot of the entity in its parent.
+     * The indices leased for the children of the removed entities are dropped rather than recycled, because their
+     * recycled indices are deleted together with the entities.
+     *
+     * @param slot the index of the entity among its siblings or null if not known
+     */
+    public void removeSubtree(CanonicalPath entityPath, Integer slot) {
+        if (leases != null) {
+            List<CanonicalPath> removed = leasedSlots.asMap().keySet().stream()
+                    .filter(p -> p.equals(entityPath) || entityPath.isParentOf(p))
+                    .collect(Collectors.toList());
+            for (CanonicalPath p : removed) {
+                LeasedSlots slots = leasedSlots.asMap().remove(p);
+                if (slots != null) {
+                    //marks the slots released, so that the allocations in progress don't use them
+                    slots.release();
+                }
+            }
+
+        } else {
+            childSlots.asMap().keySet().removeIf(p -> p.equals(entityPath) || entityPath.isParentOf(p));
+        }
+
+        CanonicalPath parent = entityPath.up();
+        if (parent.isDefined() && slot != null) {
+            freeSlot(parent, slot);
         }
     }
 
-    public int decrementAndGet(CanonicalPath parentPath) {
-        synchronized (childCounts) {
-            return decrementAndGetNonSynced(parentPath);
+    /**
+     * Frees a slot that was allocated but is not used by any child, e.g. because the child has been deleted.
+     */
+    public void freeSlot(CanonicalPath parentPath, int slot) {
+        if (leases != null) {
+            recycleInBackground(parentPath, Collections.singletonList(new ChildIndexLeases.Block(slot, slot + 1)));
+            return;
+        }
+
+        Observable<Slots> slots = childSlots.getIfPresent(parentPath);
+        if (slots != null) {
+            //if the slots are still loading, the entity might be seen by the load, so free it after it's done
+            slots.subscribe(s -> s.free(slot), e -> {});
         }
     }
 
-    private int incrementAndGetNonSynced(CanonicalPath parentPath) {
-        return childCounts.merge(parentPath, 1, (old, any) -> old + 1);
+    /**
+     * Declares the indices {@code 1..count} as the only ones used by the children of the entity, e.g. after its
+     * children were renumbered.
+     *
+     * <p>Must never be called when the indices are leased. The indices above {@code count} may be leased to other
+     * nodes, and the indices below it given back to the leases would be handed out a second time.
+     */
+    public void resetSlots(CanonicalPath parentPath, int count) {
+        if (leases != null) {
+            throw new IllegalStateException("The child indices cannot be reset while they are leased.");
+        }
+
+        Slots slots = new Slots();
+        slots.max = count;
+        childSlots.put(parentPath, Observable.just(slots));
+    }
+
+    /**
+     * Gives back all the leased indices that were not used yet, so that the other nodes can use them. Meant to be
+     * called when the node shuts down, no more indices are leased afterwards.
+     */
+    public Observable<Void> releaseAll() {
+        if (leases == null) {
+            return Observable.empty();
+        }
+
+        expiredLeasesCleanup.unsubscribe();
+
+        return Observable.from(new ArrayList<>(leasedSlots.asMap().keySet()))
+                .concatMap(p -> {
+                    LeasedSlots slots = leasedSlots.asMap().remove(p);
+                    return slots == null
+                            ? Observable.<Void>empty()
+                            : Observable.from(slots.release())
+                            .concatMap(block -> leases.recycle(p, block.fromIndex, block.toIndex));
+                });
+    }
+
+    private Observable<Integer> firstUnusedIndex(CanonicalPath parentPath, LeasedSlots slots) {
+        if (slots.knownEmpty) {
+            return Observable.just(1);
+        }
+
+        return childIndices.apply(parentPath).reduce(0, (a, b) -> Math.max(a, b)).map(max -> max + 1);
+    }
+
+    private void recycleInBackground(CanonicalPath parentPath, List<ChildIndexLeases.Block> blocks) {
+        for (ChildIndexLeases.Block block : blocks) {
+            leases.recycle(parentPath, block.fromIndex, block.toIndex).subscribe(any -> {},
+                    e -> Log.LOG.warnChildIndicesNotRecycled(block.toString(), parentPath.toString(), e));
+        }
     }
 
-    private int decrementAndGetNonSynced(CanonicalPath parentPath) {
-        return childCounts.merge(parentPath, 0, (old, any) -> old > 0 ? old - 1 : 0);
+    private Observable<Slots> slotsOf(CanonicalPath parentPath) {
+        //the load is cached, so that the concurrent creations of the children all wait for the same load
+        return childSlots.get(parentPath, p -> childIndices.apply(p)
+                .collect(Slots::new, Slots::use)
+                .doOnError(e -> childSlots.invalidate(p))
+                .cache());
     }
 
-    private void initParents(CanonicalPath entityPath) {
-        for (CanonicalPath parent : entityPath.up()) {
-            if (childCounts.containsKey(parent)) {
-                break;
+    private static final class Slots {
+        /**
+         * The highest index in use.
+         */
+        int max;
+
+        /**
+         * The unused indices below {@link #max}.
+         */
+        final BitSet free = new BitSet();
+
+        synchronized void use(int slot) {
+            if (slot > max) {
+                free.set(max + 1, slot);
+                max = slot;
             } else {
-                childCounts.put(parent, 1);
+                free.clear(slot);
             }
         }
+
+        synchronized int allocate() {
+            int slot = free.nextSetBit(1);
+            if (slot < 0) {
+                return ++max;
+            }
+
+            free.clear(slot);
+            return slot;
+        }
+
+        synchronized void free(int slot) {
+            if (slot == max) {
+                //shrink the used range as much as possible so that the free set stays small
+                do {
+                    free.clear(max--);
+                } while (max > 0 && free.get(max));
+            } else if (slot > 0 && slot < max) {
+                free.set(slot);
+            }
+        }
+    }
+
+    /**
+     * The indices leased to this node that were not used yet.
+     */
+    private static final class LeasedSlots {
+        static final int NONE = 0;
+        static final int RELEASED = -1;
+
+        /**
+         * True if the entity was created on this node, so it has no children yet.
+         */
+        final boolean knownEmpty;
+        private final BitSet unused = new BitSet();
+        private boolean released;
+        private Observable<ChildIndexLeases.Block> pendingLease;
+
+        LeasedSlots(boolean knownEmpty) {
+            this.knownEmpty = knownEmpty;
+        }
+
+        synchronized int take() {
+            if (released) {
+                return RELEASED;
+            }
+
+            int slot = unused.nextSetBit(1);
+            if (slot < 0) {
+                return NONE;
+            }
+
+            unused.clear(slot);
+            return slot;
+        }
+
+        /**
+         * @return false if the slots were released already, in which case the block needs to be recycled
+         */
+        synchronized boolean add(ChildIndexLeases.Block block) {
+            if (released) {
+                return false;
+            }
+
+            unused.set(block.fromIndex, block.toIndex);
+            return true;
+        }
+
+        synchronized Observable<ChildIndexLeases.Block> leasing(Supplier<Observable<ChildIndexLeases.Block>> lease) {
+            if (pendingLease == null) {
+                pendingLease = lease.get().doAfterTerminate(this::leaseFinished).cache();
+            }
+
+            return pendingLease;
+        }
+
+        private synchronized void leaseFinished() {
+            pendingLease = null;
+        }
+
+        /**
+         * Marks the slots as released, so that no more indices are taken from them.
+         *
+         * @return the unused indices
+         */
+        synchronized List<ChildIndexLeases.Block> release() {
+            released = true;
+
+            List<ChildIndexLeases.Block> ret = new ArrayList<>();
+            int from = unused.nextSetBit(1);
+            while (from >= 0) {
+                int to = unused.nextClearBit(from);
+                ret.add(new ChildIndexLeases.Block(from, to));
+                from = unused.nextSetBit(to);
+            }
+            unused.clear();
+
+            return ret;
+        }
     }
 }
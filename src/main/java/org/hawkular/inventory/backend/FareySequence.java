@@ -18,7 +18,6 @@ package org.hawkular.inventory.backend;
 
 import java.math.BigDecimal;
 import java.math.MathContext;
-import java.util.Iterator;
 
 /**
  * @author Lukas Krejci
@@ -28,24 +27,49 @@ public final class FareySequence {
 
     private static final MathContext PRECISION = MathContext.DECIMAL128;
 
+    /**
+     * Computes the interval of the node at given path in the tree.
+     *
+     * <p>The {@code n}-th child of a node with the interval {@code [L, H]} has the interval
+     * {@code [H (+) n*L, H (+) (n-1)*L]}, where {@code (+)} is the mediant and {@code n*L} means applying the
+     * mediant with {@code L} n times. Because the mediant just adds the numerators and the denominators, this
+     * simplifies to {@code [(Hn + n*Ln)/(Hd + n*Ld), (Hn + (n-1)*Ln)/(Hd + (n-1)*Ld)]} which can be computed in
+     * constant time regardless of the index of the child.
+     *
+     * @param treePath the indices of the nodes on the path from the root
+     * @return the interval of the node
+     * @throws ArithmeticException if the numerator or denominator of the interval cannot be expressed in a long
+     */
     public static Interval intervalForPath(Iterable<Integer> treePath) {
-        RationalNumber low = new RationalNumber(1, 2);
-        RationalNumber high = new RationalNumber(1, 1);
-
-        Iterator<Integer> it = treePath.iterator();
-        while (it.hasNext()) {
-            long treeIdx = it.next();
-            RationalNumber lastHigh = high;
-            for (long ti = 0; ti < treeIdx; ++ti) {
-                lastHigh = high;
-                high = high.mediant(low);
+        long lowNum = 1;
+        long lowDen = 2;
+        long highNum = 1;
+        long highDen = 1;
+
+        for (Integer idx : treePath) {
+            long treeIdx = idx;
+            if (treeIdx <= 0) {
+                lowNum = highNum;
+                lowDen = highDen;
+                continue;
             }
 
-            low = high;
-            high = lastHigh;
+            try {
+                long newLowNum = Math.addExact(highNum, Math.multiplyExact(treeIdx, lowNum));
+                long newLowDen = Math.addExact(highDen, Math.multiplyExact(treeIdx, lowDen));
+
+                //the high end of the interval is the previous sibling's low end
+                highNum = newLowNum - lowNum;
+                highDen = newLowDen - lowDen;
+                lowNum = newLowNum;
+                lowDen = newLowDen;
+            } catch (ArithmeticException e) {
+                throw new ArithmeticException("Cannot express the interval for the path " + treePath + "." +
+                        " The value would arithmetically overflow.");
+            }
         }
 
-        return new Interval(low, high);
+        return new Interval(new RationalNumber(lowNum, lowDen), new RationalNumber(highNum, highDen));
     }
 
     public static final class Interval {
@@ -56,8 +80,8 @@ public final class FareySequence {
             this.low = low;
             this.high = high;
 
-            if (low.toDecimal().equals(high.toDecimal())) {
-                throw new IllegalArgumentException("The interval is below the current resolution: " + PRECISION);
+            if (low.compareTo(high) >= 0) {
+                throw new IllegalArgumentException("The interval [" + low + ", " + high + "] is empty.");
             }
         }
 
@@ -91,7 +115,7 @@ public final class FareySequence {
         }
     }
 
-    public static final class RationalNumber {
+    public static final class RationalNumber implements Comparable<RationalNumber> {
         final long numerator;
         final long denominator;
 
@@ -114,6 +138,38 @@ public final class FareySequence {
             return new BigDecimal(numerator).divide(new BigDecimal(denominator), PRECISION);
         }
 
+        /**
+         * Compares the two non-negative rationals exactly. Instead of cross-multiplying, which could overflow, this
+         * compares the continued fraction expansions of the two numbers.
+         */
+        @Override public int compareTo(RationalNumber other) {
+            long a = numerator;
+            long b = denominator;
+            long c = other.numerator;
+            long d = other.denominator;
+
+            while (true) {
+                long q1 = a / b;
+                long q2 = c / d;
+                if (q1 != q2) {
+                    return q1 < q2 ? -1 : 1;
+                }
+
+                long r1 = a % b;
+                long r2 = c % d;
+                if (r1 == 0 || r2 == 0) {
+                    return r1 == r2 ? 0 : (r1 == 0 ? -1 : 1);
+                }
+
+                //r1/b < r2/d if and only if d/r2 < b/r1
+                long oldB = b;
+                a = d;
+                b = r2;
+                c = oldB;
+                d = r1;
+            }
+        }
+
         @Override public boolean equals(Object o) {
             if (this == o) return true;
             if (!(o instanceof RationalNumber)) return false;
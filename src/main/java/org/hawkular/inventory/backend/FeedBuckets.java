@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.hawkular.inventory.paths.Path;
+import org.hawkular.inventory.paths.SegmentType;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import rx.Observable;
+
+/**
+ * Keeps track of the number of buckets the entities of each feed are spread over and computes the partitions of the
+ * entity tree the entities are stored in.
+ *
+ * <p>The entities of a feed with more than one bucket are distributed among the buckets by the hash of their
+ * top-level subtree, i.e. of their ancestor that is a direct child of the feed. A subtree under a direct child of the
+ * feed therefore always lives in a single partition. The feed itself and the subtrees in the bucket 0 stay in the
+ * partition of the feed, the other buckets use the partition key of the feed suffixed with the number of the bucket.
+ * Feeds with a single bucket are stored in a single partition.
+ *
+ * <p>The number of buckets of a feed is decided when the feed is created and is stored with the feed, together with
+ * the partition key of the feed. New feeds use the {@link #partitionKey(String) escaped} feed IDs as their partition
+ * keys, the feeds created before the escaping was introduced keep using their unescaped feed IDs. The
+ * {@link Partitioning partitioning} of a feed is read lazily, when the feed is first used, and forgotten when the
+ * feed is not used for a while.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+final class FeedBuckets {
+    private static final String FAKE_FEED_ID_FOR_TENANT = "<TENANT>";
+    private static final long IDLE_FEED_EXPIRY_MINUTES = 60;
+
+    private final Cache<List<String>, Partitioning> partitionings;
+    private final int bucketsOfNewFeeds;
+    private final Function<CanonicalPath, Observable<Partitioning>> partitioningOfFeed;
+
+    /**
+     * @param bucketsOfNewFeeds  the number of buckets to assign to the newly created feeds
+     * @param partitioningOfFeed reads the partitioning of the existing feed with given path. Returns an empty
+     *                           observable if the feed doesn't exist.
+     */
+    FeedBuckets(int bucketsOfNewFeeds, Function<CanonicalPath, Observable<Partitioning>> partitioningOfFeed) {
+        this.bucketsOfNewFeeds = bucketsOfNewFeeds;
+        this.partitioningOfFeed = partitioningOfFeed;
+        this.partitionings = Caffeine.newBuilder()
+                .expireAfterAccess(IDLE_FEED_EXPIRY_MINUTES, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Makes sure the partitioning of the feed of the entity is known, so that the partitions of the entity and its
+     * descendants can be computed. This needs to be called before working with the entities of a feed. The
+     * number is not remembered for the feeds that don't exist (yet).
+     *
+     * @return the number of buckets of the feed of the entity, 1 for the entities that are not in any feed
+     */
+    public Observable<Integer> load(CanonicalPath cp) {
+        return Observable.defer(() -> {
+            String feedId = cp.ids().getFeedId();
+            if (feedId == null) {
+                return Observable.just(1);
+            }
+
+            List<String> key = key(cp);
+            Partitioning partitioning = partitionings.getIfPresent(key);
+            if (partitioning != null) {
+                return Observable.just(partitioning.buckets);
+            }
+
+            CanonicalPath feed = CanonicalPath.of().tenant(key.get(0)).feed(feedId).get();
+            return partitioningOfFeed.apply(feed)
+                    .doOnNext(p -> partitionings.put(key, p))
+                    .map(p -> p.buckets)
+                    .defaultIfEmpty(1);
+        });
+    }
+
+    /**
+     * Decides the number of buckets of a newly created feed.
+     *
+     * @return the number of buckets to store with the feed or null if the feed is not bucketed
+     */
+    public Integer assignBuckets(CanonicalPath feed) {
+        partitionings.put(key(feed), new Partitioning(bucketsOfNewFeeds, partitionKey(feed.ids().getFeedId())));
+        return bucketsOfNewFeeds <= 1 ? null : bucketsOfNewFeeds;
+    }
+
+    /**
+     * Forgets the partitionings of the feeds in the deleted subtree. Only has any effect for tenants and feeds.
+     */
+    public void removeSubtree(CanonicalPath cp) {
+        switch (cp.getSegment().getElementType()) {
+            case t:
+                String tenantId = cp.ids().getTenantId();
+                partitionings.asMap().keySet().removeIf(k -> k.get(0).equals(tenantId));
+                break;
+            case f:
+                partitionings.invalidate(key(cp));
+                break;
+            default:
+                //nothing to do
+        }
+    }
+
+    public boolean isBucketed(CanonicalPath cp) {
+        return cp.ids().getFeedId() != null && partitioningOf(cp).buckets > 1;
+    }
+
+    /**
+     * @return the feed ID of the partition the entity is stored in
+     */
+    public String partitionOf(CanonicalPath cp) {
+        String feedId = cp.ids().getFeedId();
+        if (feedId == null) {
+            return FAKE_FEED_ID_FOR_TENANT;
+        }
+
+        Partitioning partitioning = partitioningOf(cp);
+        List<Path.Segment> segments = cp.getPath();
+        if (partitioning.buckets <= 1 || segments.size() <= 2) {
+            return partitioning.partitionKey;
+        }
+
+        Path.Segment topLevel = segments.get(2);
+        int hash = Objects.hash(topLevel.getElementType().name(), topLevel.getElementId());
+
+        return partitioning.partitionOfBucket(Math.floorMod(hash, partitioning.buckets));
+    }
+
+    /**
+     * @return the feed IDs of all the partitions that can contain the descendants of the entity
+     */
+    public List<String> descendantPartitionsOf(CanonicalPath cp) {
+        if (cp.getSegment().getElementType() != SegmentType.f) {
+            return Collections.singletonList(partitionOf(cp));
+        }
+
+        return partitioningOf(cp).partitions();
+    }
+
+    /**
+     * The partition key of a new feed in the entity tree. The backslashes and the opening angle brackets in the feed
+     * ID are escaped, so that the key can't be confused with the partition of the tenant or with a bucket of another
+     * feed, e.g. the feed {@code x<1>} with the bucket 1 of the feed {@code x}.
+     */
+    static String partitionKey(String feedId) {
+        if (feedId.indexOf('\\') < 0 && feedId.indexOf('<') < 0) {
+            return feedId;
+        }
+
+        return feedId.replace("\\", "\\\\").replace("<", "\\<");
+    }
+
+    /**
+     * @return the partitioning of the feed of the entity or, if it's not known, of a new feed with a single bucket
+     */
+    private Partitioning partitioningOf(CanonicalPath cp) {
+        Partitioning partitioning = partitionings.getIfPresent(key(cp));
+        return partitioning == null ? new Partitioning(1, partitionKey(cp.ids().getFeedId())) : partitioning;
+    }
+
+    private static List<String> key(CanonicalPath cp) {
+        return Arrays.asList(cp.ids().getTenantId(), cp.ids().getFeedId());
+    }
+
+    /**
+     * The number of buckets of a feed together with the partition key of the feed itself, i.e. of its bucket 0.
+     */
+    static final class Partitioning {
+        final int buckets;
+        final String partitionKey;
+
+        Partitioning(int buckets, String partitionKey) {
+            this.buckets = Math.max(buckets, 1);
+            this.partitionKey = partitionKey;
+        }
+
+        /**
+         * @return the feed IDs of all the partitions of the feed
+         */
+        List<String> partitions() {
+            List<String> ret = new ArrayList<>(buckets);
+            for (int i = 0; i < buckets; ++i) {
+                ret.add(partitionOfBucket(i));
+            }
+
+            return ret;
+        }
+
+        String partitionOfBucket(int bucket) {
+            return bucket == 0 ? partitionKey : partitionKey + "<" + bucket + ">";
+        }
+    }
+}
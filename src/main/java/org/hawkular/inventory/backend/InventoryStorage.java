@@ -17,18 +17,32 @@
 package org.hawkular.inventory.backend;
 
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Manifest;
+import java.util.stream.Collectors;
 
 import javax.net.ssl.SSLContext;
 
@@ -37,8 +51,11 @@ import org.cassalog.core.CassalogBuilder;
 import org.hawkular.inventory.logging.Log;
 import org.hawkular.inventory.model.Entity;
 import org.hawkular.inventory.model.InventoryStructure;
+import org.hawkular.inventory.model.Page;
 import org.hawkular.inventory.model.Relationship;
+import org.hawkular.inventory.model.SyncConfiguration;
 import org.hawkular.inventory.model.SyncRequest;
+import org.hawkular.inventory.model.SyncResult;
 import org.hawkular.inventory.paths.CanonicalPath;
 import org.hawkular.inventory.paths.RelativePath;
 import org.hawkular.inventory.paths.SegmentType;
@@ -48,6 +65,7 @@ import org.hawkular.rx.cassandra.driver.RxSessionImpl;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.JdkSSLOptions;
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.PoolingOptions;
 import com.datastax.driver.core.QueryLogger;
 import com.datastax.driver.core.QueryOptions;
@@ -55,25 +73,96 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.SSLOptions;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.Statement;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.common.collect.ImmutableMap;
 
 import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.subjects.AsyncSubject;
 
 /**
  * @author Lukas Krejci
  * @since 2.0.0
  */
 public class InventoryStorage {
-    private static final String FAKE_FEED_ID_FOR_TENANT = "<TENANT>";
+    /**
+     * The types of entities that can be stored in the entity tree under some other entity in the same partition.
+     */
+    private static final Set<SegmentType> DESCENDANT_TYPES =
+            Collections.unmodifiableSet(EnumSet.complementOf(EnumSet.of(SegmentType.t, SegmentType.f, SegmentType.rl)));
+    /**
+     * The partitions in which entities with interval denominators above this are created are queued for the
+     * re-encoding by the background job. This leaves the room for roughly 2^15 more children of such entities.
+     */
+    private static final long REENCODING_THRESHOLD = 1L << 48;
+    private static final int MAX_REENCODING_ATTEMPTS = 3;
+    /**
+     * The cached entities are read again after this time at the latest, because the cache is not invalidated by the
+     * writes on the other nodes.
+     */
+    private static final long ENTITY_CACHE_TTL_MINUTES = 10;
     private final RxSession session;
     private final Statements statements;
     private final ChildrenCountCache childrenCountCache;
+    private final FeedBuckets feedBuckets;
+    private final Cache<CanonicalPath, CachedEntity> entityCache;
+    /**
+     * The paths of the recently missing entities mapped to the time they were found missing.
+     */
+    private final Cache<CanonicalPath, Long> missingEntities;
+    /**
+     * The times of the last invalidations of the whole tenants and of the individual partitions of the entity tree.
+     * The entities read from the partitions before their invalidation are no longer served from the caches. This way
+     * the whole subtrees can be invalidated without looking for their entities in the caches.
+     */
+    private final Cache<String, Long> invalidatedTenants;
+    private final Cache<List<String>, Long> invalidatedPartitions;
+    /**
+     * The times of the last invalidations of the individual entities. A read that started before the entity was
+     * written can finish after the write has invalidated the caches. What such a read puts in the caches is not
+     * served.
+     */
+    private final Cache<CanonicalPath, Long> invalidatedEntities;
+    /**
+     * Provides the times for the caches. It is a counter rather than a clock, so that we can tell whether a read
+     * started before or after an invalidation even if both happen in the same millisecond.
+     */
+    private final AtomicLong cacheClock = new AtomicLong();
+    private final PathCache pathCache;
+    private final boolean useLwtForEntityWrites;
+    private final boolean useLoggedBatchesForRelationships;
+    private final boolean leaseChildIndices;
+    private final boolean queueExhaustedPartitions;
+    private final Set<List<String>> exhaustedPartitions = ConcurrentHashMap.newKeySet();
+    private final Map<List<String>, Observable<Integer>> reencodings = new ConcurrentHashMap<>();
+    /**
+     * The periodic re-encoding of the exhausted partitions or null if it is not configured.
+     */
+    private final Subscription exhaustedPartitionsReencoding;
+    private final Set<SlotAllocation> slotAllocations = ConcurrentHashMap.newKeySet();
+    private final Map<CanonicalPath, Observable<FullEntity>> creationsInProgress = new ConcurrentHashMap<>();
 
     @SuppressWarnings("unused")
     protected InventoryStorage() {
         session = null;
         statements = null;
         childrenCountCache = null;
+        feedBuckets = null;
+        entityCache = null;
+        missingEntities = null;
+        invalidatedTenants = null;
+        invalidatedPartitions = null;
+        invalidatedEntities = null;
+        pathCache = null;
+        useLwtForEntityWrites = false;
+        useLoggedBatchesForRelationships = false;
+        leaseChildIndices = false;
+        queueExhaustedPartitions = false;
+        exhaustedPartitionsReencoding = null;
     }
 
     public InventoryStorage(Map<String, String> configuration) {
@@ -83,9 +172,129 @@ public class InventoryStorage {
         initSchema(cSession, keyspace);
 
         session = new RxSessionImpl(cSession);
-        statements = new Statements(session, cSession);
-        childrenCountCache = new ChildrenCountCache();
-        childrenCountCache.initialize(statements);
+        int maxBatchSize;
+        try {
+            maxBatchSize = Integer.parseInt(configuration.getOrDefault("max-batch-size", "50"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidMaxBatchSize(configuration.getOrDefault("max-batch-size", null), "50", e);
+            maxBatchSize = 50;
+        }
+        if (maxBatchSize < 1) {
+            Log.LOG.warnInvalidMaxBatchSize(Integer.toString(maxBatchSize), "1", null);
+            maxBatchSize = 1;
+        }
+        int maxInFlightRequests;
+        try {
+            maxInFlightRequests = Integer.parseInt(configuration.getOrDefault("max-in-flight-requests", "64"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidMaxInFlightRequests(configuration.getOrDefault("max-in-flight-requests", null), "64",
+                    e);
+            maxInFlightRequests = 64;
+        }
+        if (maxInFlightRequests < 1) {
+            Log.LOG.warnInvalidMaxInFlightRequests(Integer.toString(maxInFlightRequests), "1", null);
+            maxInFlightRequests = 1;
+        }
+        statements = new Statements(session, cSession, maxBatchSize, maxInFlightRequests);
+        registerExistingFeeds(cSession, keyspace);
+        int bucketsOfNewFeeds;
+        try {
+            bucketsOfNewFeeds = Integer.parseInt(configuration.getOrDefault("feed-buckets", "1"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidFeedBuckets(configuration.getOrDefault("feed-buckets", null), "1", e);
+            bucketsOfNewFeeds = 1;
+        }
+        feedBuckets = new FeedBuckets(bucketsOfNewFeeds, this::partitioningOf);
+        int childIndexLeaseSize;
+        try {
+            childIndexLeaseSize = Integer.parseInt(configuration.getOrDefault("child-index-lease-size", "0"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidChildIndexLeaseSize(configuration.getOrDefault("child-index-lease-size", null), "0",
+                    e);
+            childIndexLeaseSize = 0;
+        }
+        leaseChildIndices = childIndexLeaseSize > 0;
+        childrenCountCache = leaseChildIndices
+                ? new ChildrenCountCache(this::childIndicesOf, new ChildIndexLeases(statements, childIndexLeaseSize))
+                : new ChildrenCountCache(this::childIndicesOf);
+
+        long entityCacheCapacity;
+        try {
+            entityCacheCapacity = Long.parseLong(configuration.getOrDefault("entity-cache-capacity", "100000"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidEntityCacheCapacity(configuration.getOrDefault("entity-cache-capacity", null),
+                    "100000", e);
+            entityCacheCapacity = 100000;
+        }
+        //each entity weighs 1 + the number of its properties, so that a couple of entities with huge property maps
+        //can't take up the whole cache
+        entityCache = Caffeine.newBuilder()
+                .maximumWeight(Math.max(entityCacheCapacity, 0))
+                .weigher((CanonicalPath cp, CachedEntity ce) -> 1 + (ce.entity.entity.getProperties() == null
+                        ? 0
+                        : ce.entity.entity.getProperties().size()))
+                .expireAfterWrite(ENTITY_CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+
+        long missingEntityTtl;
+        try {
+            missingEntityTtl = Long.parseLong(configuration.getOrDefault("missing-entity-ttl", "5000"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidMissingEntityTtl(configuration.getOrDefault("missing-entity-ttl", null), "5000", e);
+            missingEntityTtl = 5000;
+        }
+        //the paths are only remembered briefly, because we can't know about the entities created on other nodes
+        missingEntities = Caffeine.newBuilder()
+                .maximumSize(Math.max(entityCacheCapacity, 0))
+                .expireAfterWrite(Math.max(missingEntityTtl, 0), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        //the invalidations need to be remembered for as long as the entities read before them can stay cached
+        long invalidationTtl = Math.max(TimeUnit.MINUTES.toMillis(ENTITY_CACHE_TTL_MINUTES), missingEntityTtl);
+        invalidatedTenants = Caffeine.newBuilder()
+                .expireAfterWrite(invalidationTtl, TimeUnit.MILLISECONDS)
+                .build();
+        invalidatedPartitions = Caffeine.newBuilder()
+                .expireAfterWrite(invalidationTtl, TimeUnit.MILLISECONDS)
+                .build();
+        //there can be at most as many entities to watch for as there are cached, the rest are just dropped from the
+        //caches once their invalidation is forgotten
+        invalidatedEntities = Caffeine.newBuilder()
+                .maximumSize(Math.max(entityCacheCapacity, 0))
+                .expireAfterWrite(invalidationTtl, TimeUnit.MILLISECONDS)
+                .<CanonicalPath, Long>removalListener((cp, invalidatedAt, cause) -> {
+                    if (cp != null && cause == RemovalCause.SIZE) {
+                        entityCache.invalidate(cp);
+                        missingEntities.invalidate(cp);
+                    }
+                })
+                .build();
+        //the paths of the cached entities are the ones read and bound over and over
+        pathCache = new PathCache(entityCacheCapacity);
+
+        useLwtForEntityWrites = Boolean.parseBoolean(configuration.getOrDefault("use-lwt", "false"));
+        useLoggedBatchesForRelationships = Boolean.parseBoolean(
+                configuration.getOrDefault("logged-relationship-writes", "false"));
+
+        long reencodingInterval;
+        try {
+            reencodingInterval = Long.parseLong(configuration.getOrDefault("reencoding-interval", "0"));
+        } catch (NumberFormatException e) {
+            Log.LOG.warnInvalidReencodingInterval(configuration.getOrDefault("reencoding-interval", null), "0", e);
+            reencodingInterval = 0;
+        }
+        //the children are never renumbered when their indices are leased, see reencodePartition()
+        queueExhaustedPartitions = reencodingInterval > 0 && !leaseChildIndices;
+        exhaustedPartitionsReencoding = !queueExhaustedPartitions
+                ? null
+                : Observable.interval(reencodingInterval, reencodingInterval, TimeUnit.SECONDS)
+                .onBackpressureDrop()
+                .concatMap(any -> reencodeExhaustedPartitions().onErrorResumeNext(e -> {
+                    Log.LOG.warnReencodingScanFailed(e);
+                    return Observable.empty();
+                }))
+                .subscribe();
     }
 
     private static Session connect(Map<String, String> configuration) {
@@ -194,23 +403,318 @@ public class InventoryStorage {
     }
 
     public Observable<Entity> findByPath(CanonicalPath path) {
+        return feedBuckets.load(path).concatMap(any -> findFullEntity(path)).map(fe -> fe.entity);
+    }
+
+    /**
+     * Reads the number of buckets and the partition key of the feed from the feed table. The existing feeds are
+     * registered in the feed table when the storage starts for the first time, see
+     * {@link #registerExistingFeeds(Session, String)}. The feeds stored by the older inventory nodes afterwards are
+     * only found in the entity tree, under their unescaped feed ID. They are registered in the feed table once found
+     * there.
+     */
+    private Observable<FeedBuckets.Partitioning> partitioningOf(CanonicalPath feed) {
+        String tenantId = feed.ids().getTenantId();
+        String feedId = feed.ids().getFeedId();
+
+        return statements.findFeed(tenantId, feedId)
+                .map(InventoryStorage::partitioningOf)
+                .switchIfEmpty(Observable.defer(() -> statements.findByPath(tenantId, feedId,
+                        SegmentType.f.toString(), pathCache.render(feed))
+                        .map(r -> new FeedBuckets.Partitioning(r.isNull("buckets") ? 1 : r.getInt("buckets"), feedId))
+                        .concatMap(p -> statements.insertFeed(tenantId, feedId, p.buckets, p.partitionKey)
+                                .map(any -> p))));
+    }
+
+    private static FeedBuckets.Partitioning partitioningOf(Row feedRow) {
+        return new FeedBuckets.Partitioning(feedRow.isNull("buckets") ? 1 : feedRow.getInt("buckets"),
+                feedRow.getString("partitionKey"));
+    }
+
+    /**
+     * @return the feed IDs of all the partitions of the tenant, i.e. the partition of the tenant itself and the
+     * partitions of all its feeds
+     */
+    private Observable<String> partitionsOfTenant(CanonicalPath tenant) {
+        return statements.findFeedsOfTenant(tenant.ids().getTenantId())
+                .flatMapIterable(r -> partitioningOf(r).partitions())
+                .startWith(feedBuckets.partitionOf(tenant));
+    }
+
+    /**
+     * The tenants without any feed are not included, so that the tenants can be found without scanning the whole
+     * entity tree.
+     *
+     * @return the IDs of the existing tenants that have at least one feed
+     */
+    public Observable<String> findTenantIdsWithFeeds() {
+        return statements.getTenantIdsWithFeeds().map(r -> r.getString("tenantId"));
+    }
+
+    /**
+     * Reads the entity together with its position in the tree through the entity cache. The entity is considered
+     * non-existent if it was recently found missing.
+     */
+    private Observable<FullEntity> findFullEntity(CanonicalPath path) {
+        return Observable.defer(() -> {
+            //what we read from now on is invalidated by the writes that complete from now on
+            long readAt = cacheClock.incrementAndGet();
+
+            Long missingSince = missingEntities.getIfPresent(path);
+            if (missingSince != null && isStillValid(path, missingSince)) {
+                return Observable.empty();
+            }
+
+            CachedEntity cached = entityCache.getIfPresent(path);
+            if (cached != null && isStillValid(path, cached.readAt)) {
+                return Observable.just(cached.entity);
+            }
+
+            return readFullEntity(path, readAt);
+        });
+    }
+
+    /**
+     * Reads the entity together with its position in the tree from Cassandra, bypassing the caches. This is what
+     * decides whether an entity needs to be created, because the caches are local to this node and don't know about
+     * the entities created or deleted through the other nodes.
+     */
+    private Observable<FullEntity> readFullEntity(CanonicalPath path) {
+        return Observable.defer(() -> readFullEntity(path, cacheClock.incrementAndGet()));
+    }
+
+    private Observable<FullEntity> readFullEntity(CanonicalPath path, long readAt) {
         String tenantId = path.ids().getTenantId();
-        String feedId = path.ids().getFeedId();
-        feedId = feedId == null ? FAKE_FEED_ID_FOR_TENANT : feedId;
+        String feedId = feedBuckets.partitionOf(path);
         String entityType = path.getSegment().getElementType().toString();
-        String entityPath = path.toString();
 
-        return statements.findByPath(tenantId, feedId, entityType, entityPath).map(r -> {
-            String cp = r.getString("entityPath");
-            String name = r.getString("name");
-            Map<String, String> props = r.getMap("properties", String.class, String.class);
+        return statements.findByPath(tenantId, feedId, entityType, pathCache.render(path))
+                .map(r -> FullEntity.fromRow(r, pathCache))
+                .doOnNext(fe -> {
+                    if (isStillValid(path, readAt)) {
+                        entityCache.put(path, new CachedEntity(fe, readAt));
+                    }
+                })
+                .switchIfEmpty(Observable.defer(() -> {
+                    if (isStillValid(path, readAt)) {
+                        missingEntities.put(path, readAt);
+                    }
+                    return Observable.empty();
+                }));
+    }
 
-            return new Entity(CanonicalPath.fromString(cp), name, props);
-        });
+    /**
+     * @return the number of entity reads served from the entity cache
+     */
+    public long getEntityCacheHits() {
+        return entityCache.stats().hitCount();
+    }
+
+    /**
+     * @return the number of entity reads that had to go to Cassandra
+     */
+    public long getEntityCacheMisses() {
+        return entityCache.stats().missCount();
+    }
+
+    /**
+     * @return the approximate number of entities in the entity cache
+     */
+    public long getEntityCacheSize() {
+        return entityCache.estimatedSize();
+    }
+
+    /**
+     * @return the number of entity reads answered by the cache of the recently missing entities
+     */
+    public long getMissingEntityCacheHits() {
+        return missingEntities.stats().hitCount();
+    }
+
+    /**
+     * @return true if the entity read (or found missing) at given time wasn't invalidated since
+     */
+    private boolean isStillValid(CanonicalPath cp, long readAt) {
+        String tenantId = cp.ids().getTenantId();
+
+        Long tenantInvalidated = invalidatedTenants.getIfPresent(tenantId);
+        if (tenantInvalidated != null && tenantInvalidated > readAt) {
+            return false;
+        }
+
+        Long entityInvalidated = invalidatedEntities.getIfPresent(cp);
+        if (entityInvalidated != null && entityInvalidated > readAt) {
+            return false;
+        }
+
+        Long partitionInvalidated = invalidatedPartitions.getIfPresent(
+                Arrays.asList(tenantId, feedBuckets.partitionOf(cp)));
+        return partitionInvalidated == null || partitionInvalidated < readAt;
+    }
+
+    /**
+     * Prepares the invalidation of the cached entities in the subtree. Rather than looking for the entities of the
+     * subtree in the caches, all the partitions that can contain them are invalidated. The partitions are figured out
+     * right away, so that the invalidation also works after the buckets of the feeds in the subtree are forgotten.
+     *
+     * @return the action to run once the subtree has been modified
+     */
+    private Action0 cachedSubtreeInvalidation(CanonicalPath root) {
+        String tenantId = root.ids().getTenantId();
+
+        if (root.getSegment().getElementType() == SegmentType.t) {
+            return () -> invalidatedTenants.put(tenantId, cacheClock.incrementAndGet());
+        }
+
+        List<String> partitions = feedBuckets.descendantPartitionsOf(root);
+        return () -> invalidateCachedPartitions(tenantId, partitions);
+    }
+
+    private void invalidateCachedPartitions(String tenantId, List<String> partitions) {
+        long now = cacheClock.incrementAndGet();
+        for (String partition : partitions) {
+            invalidatedPartitions.put(Arrays.asList(tenantId, partition), now);
+        }
+    }
+
+    private void invalidateCachedEntity(CanonicalPath cp) {
+        //the reads racing with the write can still put the entity back in the caches but it won't be served
+        invalidatedEntities.put(cp, cacheClock.incrementAndGet());
+        entityCache.invalidate(cp);
+        missingEntities.invalidate(cp);
+    }
+
+    /**
+     * Reads all the ancestors of the entity using a single query per partition the ancestors live in (i.e. at most
+     * one for the tenant, one for the feed and one for the bucket of the feed the entity is in).
+     *
+     * @return the ancestors ordered from the tenant down to the parent of the entity. Ancestors that don't exist are
+     * not included.
+     */
+    public Observable<Entity> findAncestors(CanonicalPath cp) {
+        return feedBuckets.load(cp).concatMap(any -> findLoadedAncestors(cp));
+    }
+
+    private Observable<Entity> findLoadedAncestors(CanonicalPath cp) {
+        String tenantId = cp.ids().getTenantId();
+
+        List<CanonicalPath> ancestors = new ArrayList<>();
+        for (CanonicalPath p = cp.up(); p.isDefined(); p = p.up()) {
+            ancestors.add(p);
+        }
+        Collections.reverse(ancestors);
+
+        Map<String, List<CanonicalPath>> ancestorsByPartition = ancestors.stream()
+                .collect(Collectors.groupingBy(feedBuckets::partitionOf));
+
+        return Observable.from(ancestorsByPartition.entrySet())
+                .flatMap(e -> statements.findByPaths(tenantId, e.getKey(),
+                        e.getValue().stream().map(p -> p.getSegment().getElementType().toString()).distinct()
+                                .collect(Collectors.toList()),
+                        e.getValue().stream().map(pathCache::render).collect(Collectors.toList())))
+                .map(r -> new Entity(pathCache.parse(r.getString("entityPath")), r.getString("name"),
+                        r.getMap("properties", String.class, String.class)))
+                .toMap(Entity::getPath)
+                .flatMap(found -> Observable.from(ancestors).filter(found::containsKey).map(found::get));
+    }
+
+    /**
+     * Reads a page of the direct children of given type of the entity. The children are read by a single slice of
+     * the parent's partition narrowed down by the depth index. The children of a bucketed feed are read bucket by
+     * bucket.
+     *
+     * @param parent    the entity to read the children of
+     * @param type      the type of the children to read
+     * @param pageSize  the maximum number of children to return
+     * @param pageToken the {@link Page#getNextPageToken() token} of the previous page or null to read the first page
+     * @throws IllegalArgumentException if the type cannot be stored under the parent in the same partition or the
+     *                                  page token is invalid
+     */
+    public Observable<Page<Entity>> findChildren(CanonicalPath parent, SegmentType type, int pageSize,
+                                                 String pageToken) {
+        if (!DESCENDANT_TYPES.contains(type)) {
+            throw new IllegalArgumentException("Children of type " + type.getSimpleName() + " cannot be listed.");
+        }
+
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive.");
+        }
+
+        return feedBuckets.load(parent).concatMap(any -> findChildren(parent, type,
+                feedBuckets.descendantPartitionsOf(parent), pageSize, pageToken));
+    }
+
+    private Observable<Page<Entity>> findChildren(CanonicalPath parent, SegmentType type, List<String> partitions,
+                                                  int pageSize, String pageToken) {
+        if (partitions.size() == 1) {
+            return findChildren(parent, type, partitions, 0, pageSize, pageToken);
+        }
+
+        //the token of a bucketed feed is prefixed with the index of the bucket it continues in
+        int partition = 0;
+        String pagingState = null;
+        if (pageToken != null) {
+            int sep = pageToken.indexOf(':');
+            try {
+                partition = Integer.parseInt(pageToken.substring(0, Math.max(sep, 0)));
+            } catch (NumberFormatException e) {
+                return Observable.error(new IllegalArgumentException("Invalid page token: " + pageToken, e));
+            }
+            if (partition < 0 || partition >= partitions.size()) {
+                return Observable.error(new IllegalArgumentException("Invalid page token: " + pageToken));
+            }
+            pagingState = sep == pageToken.length() - 1 ? null : pageToken.substring(sep + 1);
+        }
+
+        return findChildren(parent, type, partitions, partition, pageSize, pagingState);
+    }
+
+    /**
+     * Reads the children from the given partition and, if it doesn't contain enough of them to fill the page, from
+     * the subsequent partitions.
+     */
+    private Observable<Page<Entity>> findChildren(CanonicalPath parent, SegmentType type, List<String> partitions,
+                                                  int partition, int pageSize, String pagingState) {
+        String tenantId = parent.ids().getTenantId();
+
+        return Observable.defer(() -> statements.getChildrenOfType(tenantId, partitions.get(partition),
+                type.toString(), pathCache.render(parent), parent.getPath().size() + 1, pageSize, pagingState))
+                .concatMap(rs -> {
+                    //only consume what's been fetched so that we don't start fetching the next page
+                    int available = rs.getAvailableWithoutFetching();
+                    List<Entity> children = new ArrayList<>(available);
+                    for (int i = 0; i < available; ++i) {
+                        children.add(FullEntity.fromRow(rs.one(), pathCache).entity);
+                    }
+
+                    PagingState next = rs.getExecutionInfo().getPagingState();
+
+                    if (partitions.size() == 1) {
+                        return Observable.just(new Page<>(children, next == null ? null : next.toString()));
+                    } else if (next != null) {
+                        return Observable.just(new Page<>(children, partition + ":" + next));
+                    } else if (partition == partitions.size() - 1) {
+                        return Observable.just(new Page<>(children, null));
+                    } else if (children.size() == pageSize) {
+                        return Observable.just(new Page<>(children, (partition + 1) + ":"));
+                    }
+
+                    return findChildren(parent, type, partitions, partition + 1, pageSize - children.size(), null)
+                            .map(rest -> {
+                                children.addAll(rest.getItems());
+                                return new Page<>(children, rest.getNextPageToken());
+                            });
+                });
     }
 
     public Observable<Void> upsert(Entity entity) throws EntityNotFoundException {
-        return _upsert(entity, false).map(e -> null);
+        CanonicalPath cp = entity.getPath();
+
+        return feedBuckets.load(cp)
+                .concatMap(any -> allocatingSlots(cp.ids().getTenantId(),
+                        Collections.singletonList(feedBuckets.partitionOf(cp)),
+                        Observable.defer(() -> _upsert(entity, false))))
+                .map(e -> null);
     }
 
     public Observable<Void> delete(CanonicalPath cp) {
@@ -223,9 +727,9 @@ public class InventoryStorage {
 
     private Observable<Void> deleteRelationship(CanonicalPath cp) {
         Relationship components = Relationship.fromCanonicalPath(cp, Collections.emptyMap());
-        String relCp = cp.toString();
-        String sourceCp = components.getSource().toString();
-        String targetCp = components.getTarget().toString();
+        String relCp = pathCache.render(cp);
+        String sourceCp = pathCache.render(components.getSource());
+        String targetCp = pathCache.render(components.getTarget());
         String name = components.getName();
 
         return Observable.merge(
@@ -235,76 +739,388 @@ public class InventoryStorage {
     }
 
     private Observable<Void> deleteEntity(CanonicalPath cp) {
+        return feedBuckets.load(cp).concatMap(any -> deleteLoadedEntity(cp));
+    }
+
+    private Observable<Void> deleteLoadedEntity(CanonicalPath cp) {
+        Action0 invalidateCache = cachedSubtreeInvalidation(cp);
+
+        //we need to know the slot of the entity among its siblings so that it can be reused
+        return findFullEntity(cp)
+                .map(FullEntity::getSlot)
+                .defaultIfEmpty(null)
+                .flatMap(slot -> statements.executeInBatches(deleteSubtrees(Collections.singletonList(cp))).toList()
+                        .<Void>map(allDone -> {
+                            childrenCountCache.removeSubtree(cp, slot);
+                            feedBuckets.removeSubtree(cp);
+                            return null;
+                        }))
+                .doOnTerminate(invalidateCache);
+    }
+
+    /**
+     * Prepares the statements removing the entities in the provided subtrees together with all the relationships they
+     * are part of. If the child indices are leased, the recycled indices of the children of the removed entities are
+     * removed, too. Their lease rows are kept, see {@link ChildIndexLeases}.
+     */
+    private Observable<Statement> deleteSubtrees(List<CanonicalPath> roots) {
+        int maxConcurrency = statements.getMaxInFlightRequests();
+
+        Observable<Statement> relationships = Observable.from(roots)
+                .concatMap(this::getSubtreePaths)
+                .flatMap(p -> leaseChildIndices
+                        ? deleteRelationshipsOf(p).concatWith(Observable.just(
+                                statements.bindDeleteAllRecycledChildIndices(p)))
+                        : deleteRelationshipsOf(p), maxConcurrency);
+
+        //concat, so that we've read all the paths in the subtrees by the time we start deleting them
+        return relationships.concatWith(Observable.from(roots).concatMap(this::deleteSubtree));
+    }
+
+    private Observable<String> getSubtreePaths(CanonicalPath cp) {
         String tenantId = cp.ids().getTenantId();
-        String fid = cp.ids().getFeedId();
-        String feedId = fid == null ? FAKE_FEED_ID_FOR_TENANT : fid;
-        String entityType = cp.getSegment().getElementType().toString();
-        String entityPath = cp.toString();
 
-        return statements.findByPath(tenantId, feedId, entityType, entityPath)
-                .flatMap(entityRow -> {
-                    BigDecimal low = entityRow.getDecimal("low");
-                    BigDecimal high = entityRow.getDecimal("high");
+        switch (cp.getSegment().getElementType()) {
+            case t:
+                return partitionsOfTenant(cp)
+                        .concatMap(feedId -> statements.getAllEntityPathsInPartition(tenantId, feedId))
+                        .map(r -> r.getString(0));
+            case f:
+                return feedBuckets.load(cp)
+                        .flatMapIterable(any -> feedBuckets.descendantPartitionsOf(cp))
+                        .concatMap(feedId -> statements.getAllEntityPathsInPartition(tenantId, feedId))
+                        .map(r -> r.getString(0));
+            default:
+                return getDescendants(cp, DESCENDANT_TYPES, true)
+                        .map(r -> r.getString(0))
+                        .startWith(pathCache.render(cp));
+        }
+    }
 
-                    return statements.getAllChildrenPaths(tenantId, feedId, low, high);
-                })
-                .map(r -> r.getString(0))
-                .toSortedList((a, b) -> a.length() - b.length())
-                .flatMap(childPaths -> {
-                    Observable<Void> chain = Observable.empty();
-                    for (String childPath : childPaths) {
-                        String childType = CanonicalPath.fromString(childPath).getSegment().getElementType().toString();
-                        chain = chain.mergeWith(statements.deleteEntity(tenantId, feedId, childType, childPath)
-                                .doOnNext(any -> childrenCountCache.decrementAndGet(cp)));
-                    }
+    /**
+     * Reads the descendants of the entity that have one of the provided types. The descendants are read using one
+     * single-partition slice per type and per bucket the descendants can be stored in. The slices are read in
+     * parallel.
+     *
+     * @param pathsOnly if true, only the {@code entityPath} column is read
+     */
+    private Observable<Row> getDescendants(CanonicalPath cp, Set<SegmentType> types, boolean pathsOnly) {
+        String tenantId = cp.ids().getTenantId();
+        String entityPath = pathCache.render(cp);
+
+        return Observable.from(feedBuckets.descendantPartitionsOf(cp)).flatMap(feedId -> Observable.from(types)
+                .flatMap(type -> pathsOnly
+                        ? statements.getDescendantPathsOfType(tenantId, feedId, type.toString(), entityPath)
+                        : statements.getDescendantsOfType(tenantId, feedId, type.toString(), entityPath)));
+    }
+
+    /**
+     * The relationships of the entity are removed by dropping its whole partitions in the {@code relationship_out}
+     * and {@code relationship_in} tables. The other ends of the relationships and the relationships themselves need
+     * to be deleted one by one though.
+     */
+    private Observable<Statement> deleteRelationshipsOf(String entityPath) {
+        CanonicalPath entity = pathCache.parse(entityPath);
+
+        Observable<Statement> out = statements.findAllOutRelationships(entityPath).flatMapIterable(r -> {
+            String name = r.getString("name");
+            String targetCp = r.getString("target_cp");
+            String relCp = pathCache.render(Relationship.componentsToCp(entity, pathCache.parse(targetCp), name));
+
+            return Arrays.asList(statements.bindDeleteInRelationship(targetCp, name, entityPath),
+                    statements.bindDeleteRelationship(relCp));
+        });
+
+        Observable<Statement> in = statements.findAllInRelationships(entityPath).flatMapIterable(r -> {
+            String name = r.getString("name");
+            String sourceCp = r.getString("source_cp");
+            String relCp = pathCache.render(Relationship.componentsToCp(pathCache.parse(sourceCp), entity, name));
+
+            return Arrays.asList(statements.bindDeleteOutRelationship(sourceCp, name, entityPath),
+                    statements.bindDeleteRelationship(relCp));
+        });
+
+        return Observable.merge(out, in).concatWith(Observable.just(
+                statements.bindDeleteAllOutRelationships(entityPath),
+                statements.bindDeleteAllInRelationships(entityPath)));
+    }
+
+    /**
+     * Prepares the statements removing the entity together with all its descendants. Feeds and tenants are removed
+     * by dropping their whole partitions. Other entities are removed together with their descendants using a range
+     * delete per entity type, so that no matter how large the subtree is, it only costs a couple of tombstones.
+     */
+    private Observable<Statement> deleteSubtree(CanonicalPath cp) {
+        String tenantId = cp.ids().getTenantId();
+
+        switch (cp.getSegment().getElementType()) {
+            case t:
+                //the tenant owns its own partition and the partitions of all its feeds
+                return partitionsOfTenant(cp)
+                        .<Statement>map(feedId -> statements.bindDeletePartition(tenantId, feedId))
+                        .concatWith(Observable.just(statements.bindDeleteFeedsOfTenant(tenantId)));
+            case f:
+                String fId = cp.ids().getFeedId();
+                return feedBuckets.load(cp)
+                        .flatMapIterable(any -> feedBuckets.descendantPartitionsOf(cp))
+                        .<Statement>map(feedId -> statements.bindDeletePartition(tenantId, feedId))
+                        .concatWith(Observable.just(statements.bindDeleteFeed(tenantId, fId)));
+            default:
+                String feedId = feedBuckets.partitionOf(cp);
+                String entityPath = pathCache.render(cp);
+
+                List<Statement> deletes = new ArrayList<>(DESCENDANT_TYPES.size() + 1);
+                deletes.add(statements.bindDeleteEntity(tenantId, feedId, cp.getSegment().getElementType().toString(),
+                        entityPath));
+
+                for (SegmentType descendantType : DESCENDANT_TYPES) {
+                    deletes.add(statements.bindDeleteDescendantsOfType(tenantId, feedId, descendantType.toString(),
+                            entityPath));
+                }
 
-                    //XXX we're issuing a delete statement for each child here... maybe it'd be better to use IN clause
-                    //and do one big statement for all children?
-                    return chain;
-                }).toList().flatMap(allDone -> statements.deleteEntity(tenantId, feedId, entityType, entityPath)
-                        .doOnNext(any -> childrenCountCache.decrementAndGet(cp.up())));
+                return Observable.from(deletes);
+        }
+    }
 
+    public Observable<SyncResult> sync(CanonicalPath rootPath, SyncRequest syncRequest) {
+        return feedBuckets.load(rootPath).concatMap(any -> syncLoaded(rootPath, syncRequest));
     }
 
-    public Observable<Void> sync(CanonicalPath rootPath, SyncRequest syncRequest) {
-        //first delete everything under the root
+    private Observable<SyncResult> syncLoaded(CanonicalPath rootPath, SyncRequest syncRequest) {
         String tenantId = rootPath.ids().getTenantId();
-        String feedId = rootPath.ids().getFeedId();
-
-        Map<RelativePath, Entity.Blueprint> entities = syncRequest.getInventoryStructure().getAllEntities();
-
-        Entity.Blueprint rootBlueprint = syncRequest.getInventoryStructure().getRoot();
-
-        Entity rootEntity = new Entity(rootPath, rootBlueprint.getName(), rootBlueprint.getProperties());
-
-        return _upsert(rootEntity, true).flatMap(fe -> {
-            Observable<Void> deleteWork = statements.getAllChildrenPaths(tenantId, feedId, fe.low, fe.high)
-                    .map(r -> CanonicalPath.fromString(r.getString(0)))
-                    .flatMap(cp -> {
-                        if (!entities.containsKey(cp.relativeTo(rootPath))) {
-                            String childType = cp.getSegment().getElementType().toString();
-                            String childPath = cp.toString();
-                            Log.LOG.trace("IN SYNC: Deleting " + childPath + ", because it's not in the sync request.");
-                            return statements.deleteEntity(tenantId, feedId, childType, childPath)
-                                    .doOnNext(any -> childrenCountCache.decrementAndGet(cp.up()));
-                        } else {
-                            return Observable.empty();
-                        }
-                    });
+        String feedId = feedBuckets.partitionOf(rootPath);
+        String rootType = rootPath.getSegment().getElementType().toString();
+
+        InventoryStructure structure = syncRequest.getInventoryStructure();
+
+        //we only need to look at the types we're going to delete and the types we're going to write.
+        EnumSet<SegmentType> scannedTypes = EnumSet.noneOf(SegmentType.class);
+        scannedTypes.addAll(syncRequest.getConfiguration().getSyncedTypes());
+        structure.getAllEntities().keySet().stream().filter(RelativePath::isDefined)
+                .forEach(rp -> scannedTypes.add(rp.getSegment().getElementType()));
+        boolean completeScan = scannedTypes.containsAll(Entity.SYNCABLE_TYPES);
+
+        //the positions of the stored entities are written back as they were read, so no re-encoding can happen
+        //in the meantime. A sync of the whole tenant can reach all its partitions.
+        List<String> partitions = rootPath.getSegment().getElementType() == SegmentType.t
+                ? null
+                : feedBuckets.descendantPartitionsOf(rootPath);
+
+        //load what we have stored under the root once and only write the differences
+        return allocatingSlots(tenantId, partitions, statements.findByPath(tenantId, feedId, rootType,
+                pathCache.render(rootPath))
+                .map(r -> FullEntity.fromRow(r, pathCache))
+                .flatMap(root -> getDescendants(rootPath, completeScan ? DESCENDANT_TYPES : scannedTypes, false)
+                        .map(r -> FullEntity.fromRow(r, pathCache)).startWith(root))
+                .toMap(fe -> fe.entity.getPath().relativeTo(rootPath))
+                .flatMap(existing -> applySyncDiff(rootPath, syncRequest, existing, completeScan)))
+                .doOnTerminate(cachedSubtreeInvalidation(rootPath));
+    }
+
+    /**
+     * @param existing     the stored entities under the sync root (including the root itself) keyed by their path
+     *                     relative to the root
+     * @param completeScan true if {@code existing} contains all the stored entities under the root, false if it
+     *                     only contains some types of entities
+     */
+    private Observable<SyncResult> applySyncDiff(CanonicalPath rootPath, SyncRequest syncRequest,
+                                                 Map<RelativePath, FullEntity> existing, boolean completeScan) {
+        InventoryStructure structure = syncRequest.getInventoryStructure();
+        SyncConfiguration configuration = syncRequest.getConfiguration();
+        Map<RelativePath, Entity.Blueprint> entities = structure.getAllEntities();
+        SyncCounter counter = new SyncCounter();
+
+        //go top-down so that we always know whether some ancestor is already being deleted
+        List<FullEntity> missing = existing.values().stream()
+                .filter(fe -> !entities.containsKey(fe.entity.getPath().relativeTo(rootPath)))
+                .sorted(Comparator.comparingInt(fe -> fe.depth))
+                .collect(Collectors.toList());
+
+        Set<CanonicalPath> deletedSubtrees = new HashSet<>();
+        List<FullEntity> deletedRoots = new ArrayList<>();
+        int knownDeleted = 0;
+        for (FullEntity fe : missing) {
+            CanonicalPath cp = fe.entity.getPath();
+
+            if (isInAnyOf(cp, deletedSubtrees, rootPath)) {
+                //if we saw all the entities, we know how many the subtree deletes are going to remove
+                if (completeScan) {
+                    knownDeleted++;
+                }
+                continue;
+            }
+
+            SegmentType type = cp.getSegment().getElementType();
+            boolean parentSynced = entities.containsKey(cp.up().relativeTo(rootPath));
+
+            if (configuration.getSyncedTypes().contains(type) && (configuration.isDeepSearch() || parentSynced)) {
+                Log.LOG.trace("IN SYNC: Deleting " + cp + ", because it's not in the sync request.");
+                deletedSubtrees.add(cp);
+                deletedRoots.add(fe);
+                knownDeleted++;
+            }
+        }
+
+        //still write level by level so that an interrupted sync never leaves children without their parents
+        List<List<RelativePath>> levels = new ArrayList<>();
+        collectLevels(structure, RelativePath.empty().get(), 0, levels);
+
+        //the new children take their position in the tree from the parents we've already seen in this sync,
+        //so there's no need to read the parents back from the database
+        Map<CanonicalPath, FullEntity> synced = new ConcurrentHashMap<>();
+
+        //the statements are prepared only as fast as the batches are executed. Apart from the in-flight requests,
+        //only a partial batch per partition and the statements prefetched by the operators are held in memory.
+        int maxConcurrency = statements.getMaxInFlightRequests();
+
+        Observable<Statement> writeWork = Observable.from(levels)
+                .concatMap(level -> statements.executeInBatches(Observable.from(level).flatMap(rp -> {
+                    Entity.Blueprint bl = entities.get(rp);
+                    CanonicalPath cp = rp.isDefined() ? rp.applyTo(rootPath) : rootPath;
+                    Entity entity = new Entity(cp, bl.getName(), bl.getProperties());
+                    return syncEntity(entity, existing.get(rp), synced, counter);
+                }, maxConcurrency)));
+
+        //if we didn't see all the entities, we need to count what's in the subtrees before we delete them
+        Observable<Integer> deletedCount = completeScan
+                ? Observable.just(knownDeleted)
+                : Observable.from(deletedRoots)
+                .flatMap(fe -> getDescendants(fe.entity.getPath(), DESCENDANT_TYPES, true)
+                        .count(), maxConcurrency)
+                .reduce(knownDeleted, (a, b) -> a + b);
+
+        Observable<Statement> deleteWork = deleteSubtrees(deletedRoots.stream().map(fe -> fe.entity.getPath())
+                .collect(Collectors.toList()));
+
+        //concat the writes after the deletes so that the child counts don't get mixed...
+        return deletedCount
+                .flatMap(deleted -> statements.executeInBatches(deleteWork).toList()
+                        .doOnNext(allDone -> deletedRoots.forEach(fe -> {
+                            childrenCountCache.removeSubtree(fe.entity.getPath(), fe.getSlot());
+                            feedBuckets.removeSubtree(fe.entity.getPath());
+                        }))
+                        .flatMap(allDone -> writeWork.toList().map(allWritten -> counter.toResult(deleted))));
+    }
+
+    private static void collectLevels(InventoryStructure struct, RelativePath path, int depth,
+                                      List<List<RelativePath>> levels) {
+        if (levels.size() == depth) {
+            levels.add(new ArrayList<>());
+        }
+
+        levels.get(depth).add(path);
 
-            //concat the inserts after the deletes so that the child counts don't get mixed...
-            return deleteWork
-                    .concatWith(insertRecursively(syncRequest.getInventoryStructure(), rootPath,
-                            RelativePath.empty().get()));
+        for (Map.Entry<SegmentType, Set<Entity.Blueprint>> e : struct.getAllChildren(path).entrySet()) {
+            for (Entity.Blueprint child : e.getValue()) {
+                collectLevels(struct, path.modified().extend(e.getKey(), child.getId()).get(), depth + 1, levels);
+            }
+        }
+    }
+
+    private static boolean isInAnyOf(CanonicalPath cp, Set<CanonicalPath> subtreeRoots, CanonicalPath stopAt) {
+        for (CanonicalPath p = cp.up(); p.isDefined() && !p.equals(stopAt); p = p.up()) {
+            if (subtreeRoots.contains(p)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Observable<Statement> syncEntity(Entity entity, FullEntity stored, Map<CanonicalPath, FullEntity> synced,
+                                             SyncCounter counter) {
+        //we know what exists from the subtree read, so no need for the lightweight transactions here
+        Observable<FullEntity> toWrite;
+        if (stored == null) {
+            counter.added++;
+            FullEntity parent = synced.get(entity.getPath().up());
+            //only the sync root can be missing its parent here
+            toWrite = parent == null ? prepareCreate(entity) : prepareCreate(entity, parent);
+        } else if (isUnchanged(stored.entity, entity)) {
+            counter.unchanged++;
+            synced.put(entity.getPath(), stored);
+            return Observable.empty();
+        } else {
+            counter.updated++;
+            stored.entity = entity;
+            toWrite = Observable.just(stored);
+        }
+
+        return toWrite.doOnNext(fe -> synced.put(fe.entity.getPath(), fe)).concatMap(fe -> {
+            Statement upsert = bindUpsert(fe);
+            return isFeed(fe) ? Observable.just(bindInsertFeed(fe), upsert) : Observable.just(upsert);
         });
     }
 
+    private static boolean isUnchanged(Entity stored, Entity incoming) {
+        Map<String, String> storedProps = stored.getProperties() == null
+                ? Collections.emptyMap()
+                : stored.getProperties();
+        Map<String, String> incomingProps = incoming.getProperties() == null
+                ? Collections.emptyMap()
+                : incoming.getProperties();
+
+        return Objects.equals(stored.getName(), incoming.getName()) && storedProps.equals(incomingProps);
+    }
+
+    /**
+     * @return the number of requests to Cassandra currently executed on behalf of syncs
+     */
+    public int getInFlightSyncRequests() {
+        return statements.getInFlightRequests();
+    }
+
+    /**
+     * @return the highest number of requests to Cassandra executed on behalf of syncs at the same time so far
+     */
+    public int getPeakInFlightSyncRequests() {
+        return statements.getPeakInFlightRequests();
+    }
+
+    /**
+     * @return the configured bound on the number of requests to Cassandra executed on behalf of syncs
+     */
+    public int getMaxInFlightSyncRequests() {
+        return statements.getMaxInFlightRequests();
+    }
+
+    /**
+     * @return the number of statements prepared by syncs that are waiting to be sent to Cassandra
+     */
+    public int getQueuedSyncStatements() {
+        return statements.getQueuedStatements();
+    }
+
+    /**
+     * Gives back the indices of the children leased to this node and not used yet, so that the other nodes can use
+     * them. To be called when the storage is no longer used. Does nothing if the indices are not leased.
+     */
+    public Observable<Void> releaseChildIndices() {
+        return childrenCountCache.releaseAll();
+    }
+
+    /**
+     * Stops the periodic re-encoding of the exhausted partitions. To be called when the storage is no longer used,
+     * the re-encodings already in progress are left to finish.
+     */
+    public void close() {
+        if (exhaustedPartitionsReencoding != null) {
+            exhaustedPartitionsReencoding.unsubscribe();
+        }
+    }
+
     public Observable<Void> relate(CanonicalPath source, CanonicalPath target, String name,
                                    Map<String, String> properties) {
-        String sourceCp = source.toString();
-        String targetCp = target.toString();
-        String relCp =
-                CanonicalPath.of().relationship(Relationship.componentsToId(source, target, name)).get().toString();
+        String sourceCp = pathCache.render(source);
+        String targetCp = pathCache.render(target);
+        String relCp = pathCache.render(
+                CanonicalPath.of().relationship(Relationship.componentsToId(source, target, name)).get());
+
+        if (useLoggedBatchesForRelationships) {
+            return statements.executeLoggedBatch(statements.bindUpsertRelationship(relCp, name, properties),
+                    statements.bindInsertRelationshipOut(sourceCp, name, targetCp, properties),
+                    statements.bindInsertRelationshipIn(targetCp, name, sourceCp, properties));
+        }
 
         return statements.insertRelationship(relCp, name, properties).concatWith(
                 Observable.merge(statements.insertRelationshipOut(sourceCp, name, targetCp, properties),
@@ -312,145 +1128,587 @@ public class InventoryStorage {
         );
     }
 
+    /**
+     * Creates all the provided relationships at once. Unlike
+     * {@link #relate(CanonicalPath, CanonicalPath, String, Map)}, this never uses lightweight transactions. The rows
+     * of all the relationships are written in partition-grouped batches.
+     *
+     * @param relationships the relationships to create
+     * @return an observable emitting a single map of the relationships that failed to be written to the reason of
+     * the failure. The map is empty if all the relationships were written successfully.
+     */
+    public Observable<Map<Relationship, Throwable>> relateAll(Collection<Relationship> relationships) {
+        Map<Statement, Relationship> owners = new IdentityHashMap<>(relationships.size() * 3);
+        for (Relationship rel : relationships) {
+            String sourceCp = pathCache.render(rel.getSource());
+            String targetCp = pathCache.render(rel.getTarget());
+            String name = rel.getName();
+            Map<String, String> properties = rel.getProperties();
+
+            owners.put(statements.bindUpsertRelationship(pathCache.render(rel.getPath()), name, properties), rel);
+            owners.put(statements.bindInsertRelationshipOut(sourceCp, name, targetCp, properties), rel);
+            owners.put(statements.bindInsertRelationshipIn(targetCp, name, sourceCp, properties), rel);
+        }
+
+        return statements.tryExecuteInBatches(Observable.from(owners.keySet()))
+                .filter(outcome -> outcome.getValue() != null)
+                .toMap(outcome -> owners.get(outcome.getKey()), Map.Entry::getValue);
+    }
+
     public Observable<Relationship> findOutRelationships(CanonicalPath sourceEntity, String name) {
-        return statements.findOutRelationships(sourceEntity.toString(), name).map(r -> {
+        return statements.findOutRelationships(pathCache.render(sourceEntity), name).map(r -> {
             String targetCp = r.getString("target_cp");
             Map<String, String> props = r.getMap("properties", String.class, String.class);
 
-            CanonicalPath target = CanonicalPath.fromString(targetCp);
+            CanonicalPath target = pathCache.parse(targetCp);
 
             return new Relationship(sourceEntity, target, name, props);
         });
     }
 
     public Observable<Relationship> findInRelationships(CanonicalPath targetEntity, String name) {
-        return statements.findInRelationships(targetEntity.toString(), name).map(r -> {
+        return statements.findInRelationships(pathCache.render(targetEntity), name).map(r -> {
             String sourceCp = r.getString("source_cp");
             Map<String, String> props = r.getMap("properties", String.class, String.class);
 
-            CanonicalPath source = CanonicalPath.fromString(sourceCp);
+            CanonicalPath source = pathCache.parse(sourceCp);
 
             return new Relationship(source, targetEntity, name, props);
         });
     }
 
     public Observable<Void> updateRelationship(Relationship rel) {
-        return statements.updateRelationshipIfExists(rel.getPath().toString(), rel.getProperties()).concatWith(
+        if (useLoggedBatchesForRelationships) {
+            //without the existence checks, the update is just a relate() that overwrites what was there before
+            return relate(rel.getSource(), rel.getTarget(), rel.getName(), rel.getProperties());
+        }
+
+        String relCp = pathCache.render(rel.getPath());
+        String sourceCp = pathCache.render(rel.getSource());
+        String targetCp = pathCache.render(rel.getTarget());
+
+        return statements.updateRelationshipIfExists(relCp, rel.getProperties()).concatWith(
                 Observable.merge(
-                        statements.updateOutRelationshipIfExists(rel.getSource().toString(), rel.getName(),
-                                rel.getTarget().toString(), rel.getProperties()),
-                        statements.updateInRelationshipIfExists(rel.getTarget().toString(), rel.getName(),
-                                rel.getSource().toString(), rel.getProperties())
+                        statements.updateOutRelationshipIfExists(sourceCp, rel.getName(), targetCp,
+                                rel.getProperties()),
+                        statements.updateInRelationshipIfExists(targetCp, rel.getName(), sourceCp,
+                                rel.getProperties())
                 )
         );
     }
 
     private Observable<FullEntity> _upsert(Entity entity, boolean needFullEntity) {
         String tenantId = entity.getPath().ids().getTenantId();
-        String fId = entity.getPath().ids().getFeedId();
-        String feedId = fId == null ? FAKE_FEED_ID_FOR_TENANT : fId;
-        //get a new standalone CP with no reference to the original path (which the mere .up() call keeps)
-        CanonicalPath parentPath = entity.getPath().up().modified().get();
+        String feedId = feedBuckets.partitionOf(entity.getPath());
 
         String entityType = entity.getPath().getSegment().getElementType().toString();
-        String entityPath = entity.getPath().toString();
+        String entityPath = pathCache.render(entity.getPath());
         String name = entity.getName();
         Map<String, String> properties = entity.getProperties();
 
-        return statements.updateIfExists(tenantId, feedId, entityType, entityPath, name, properties).flatMap(update -> {
-            boolean applied = update.getBool(0);
-            if (applied) {
-                Log.LOG.trace("IN UPSERT: Found entity " + entityPath + " already exists.");
+        if (!useLwtForEntityWrites) {
+            //a plain read is much cheaper than the Paxos round of the update below. The writes are idempotent so
+            //concurrent upserts of the same entity just overwrite each other.
+            return readFullEntity(entity.getPath())
+                    .flatMap(fe -> {
+                        Log.LOG.trace("IN UPSERT: Found entity " + entityPath + " already exists.");
+                        return write(fe.withEntity(entity));
+                    })
+                    .switchIfEmpty(Observable.defer(() -> {
+                        Log.LOG.trace("IN UPSERT: Entity " + entityPath + " doesn't exist. Creating it.");
+                        return _create(entity, false);
+                    }));
+        }
 
-                if (!needFullEntity) {
-                    return Observable.just(null);
-                }
+        return statements.updateIfExists(tenantId, feedId, entityType, entityPath, name, properties)
+                .doOnTerminate(() -> invalidateCachedEntity(entity.getPath()))
+                .flatMap(update -> {
+                    boolean applied = update.getBool(0);
+                    if (applied) {
+                        Log.LOG.trace("IN UPSERT: Found entity " + entityPath + " already exists.");
 
-                //k, the entity already exists and we just updated what was possible...
-                return statements.findByPath(tenantId, feedId, entityType, entityPath).map(FullEntity::fromRow);
-            } else {
-                Log.LOG.trace("IN UPSERT: Entity " + entityPath + " doesn't exist. Creating it.");
-                //k, need to create it
-                if (!parentPath.isDefined()) {
-                    FullEntity fe = new FullEntity();
-                    fe.entity = entity;
-                    fe.low = BigDecimal.ZERO;
-                    fe.high = BigDecimal.ONE;
-                    fe.lowNum = 0L;
-                    fe.lowDen = 1L;
-                    fe.highNum = 1L;
-                    fe.highDen = 1L;
-                    fe.treePath = Collections.singletonList(1);
-                    fe.depth = 1;
-
-                    return statements.insertEntity(tenantId, feedId, entityType, entityPath, name, properties,
-                            fe.low, fe.high, fe.lowNum, fe.lowDen, fe.highNum, fe.highDen, fe.treePath, fe.depth)
-                            .doOnNext(r -> Log.LOG.trace("IN UPSERT: Created tenant " + fe.entity.getPath()))
-                            .map(any -> fe);
-                } else {
-                    String parentType = parentPath.isDefined()
-                            ? parentPath.getSegment().getElementType().toString()
-                            : null;
-                    String parentFeedId = parentPath.ids().getFeedId();
-                    parentFeedId = parentFeedId == null ? FAKE_FEED_ID_FOR_TENANT : parentFeedId;
-
-                    return statements.findByPath(tenantId, parentFeedId, parentType, parentPath.toString())
-                            .flatMap(parentRow -> {
-                                Log.LOG.trace("IN UPSERT: Found parent " + parentPath + " while creating "
-                                        + entityPath);
-                                List<Integer> treePath = parentRow.getList("treePath", Integer.class);
-                                int myIndex = childrenCountCache.incrementAndGet(parentPath);
-                                treePath.add(myIndex);
-
-                                FareySequence.Interval interval = FareySequence.intervalForPath(treePath);
-
-                                FullEntity fe = new FullEntity();
-                                fe.entity = entity;
-                                fe.low = interval.getLow().toDecimal();
-                                fe.high = interval.getHigh().toDecimal();
-                                fe.lowNum = interval.getLow().numerator;
-                                fe.lowDen = interval.getLow().denominator;
-                                fe.highNum = interval.getHigh().numerator;
-                                fe.highDen = interval.getHigh().denominator;
-                                fe.treePath = treePath;
-                                fe.depth = treePath.size();
-
-                                return statements.insertEntity(tenantId, feedId, entityType, entityPath, name,
-                                        properties, fe.low, fe.high, fe.lowNum, fe.lowDen, fe.highNum, fe.highDen,
-                                        fe.treePath, fe.depth)
-                                        .doOnNext(r -> Log.LOG.trace("IN UPSERT: Created child tenantId: " + tenantId
-                                                + ", feedId: " + feedId + ", entityType: " + entityType
-                                                + ", entityPath: " + entityPath + ", fe: " + fe))
-                                        .map(any -> fe);
-                            }).switchIfEmpty(Observable.error(new EntityNotFoundException("Could not create "
-                                    + entity.getPath() + ", because the parent (" + parentPath + ") was not found."
-                                    + " (Executed findByPath with args: tenantId: " + tenantId + ", feedId: "
-                                    + parentFeedId + ", entityType: " + parentType + ", entityPath: "
-                                    + parentPath.toString() + ").")));
-                }
+                        if (!needFullEntity) {
+                            return Observable.just(null);
+                        }
+
+                        //k, the entity already exists and we just updated what was possible...
+                        return readFullEntity(entity.getPath());
+                    } else {
+                        Log.LOG.trace("IN UPSERT: Entity " + entityPath + " doesn't exist. Creating it.");
+                        //k, need to create it
+                        return _create(entity, true);
+                    }
+                });
+    }
+
+    /**
+     * Creates the entity. The concurrent creations of the same entity on this node share its position in the tree, so
+     * that the entity doesn't take up several slots among its siblings. The slot taken by a creation that loses the
+     * race with a creation through another node is freed once the loss is detected.
+     *
+     * @param useLwt if true, the entity is only inserted if it doesn't exist yet, otherwise the creation is only
+     *               checked after the write and only if the child indices are leased, i.e. if there are other nodes
+     */
+    private Observable<FullEntity> _create(Entity entity, boolean useLwt) {
+        CanonicalPath cp = entity.getPath();
+
+        return Observable.defer(() -> {
+            Observable<FullEntity> creation = prepareCreate(entity)
+                    .flatMap(fe -> (useLwt ? insert(fe) : write(fe).flatMap(this::checkCreated))
+                            .doOnNext(r -> Log.LOG.trace("IN UPSERT: Created " + r)))
+                    .doOnTerminate(() -> creationsInProgress.remove(cp))
+                    .cache();
+
+            Observable<FullEntity> concurrent = creationsInProgress.putIfAbsent(cp, creation);
+            if (concurrent == null) {
+                return creation;
             }
+
+            Log.LOG.trace("IN UPSERT: Entity " + pathCache.render(cp) + " is already being created. Overwriting it.");
+            return concurrent.flatMap(fe -> write(fe.withEntity(entity)));
         });
     }
 
-    private Observable<Void> insertRecursively(InventoryStructure struct, CanonicalPath root, RelativePath parent) {
-        Observable<Void> work = Observable.empty();
-        for (Map.Entry<SegmentType, Set<Entity.Blueprint>> e : struct.getAllChildren(parent).entrySet()) {
-            SegmentType type = e.getKey();
-            Set<Entity.Blueprint> children = e.getValue();
+    /**
+     * Inserts the new entity using a lightweight transaction. If the entity was created in the meantime, the slot
+     * allocated for it is freed and the provided data is written over the existing entity instead.
+     */
+    private Observable<FullEntity> insert(FullEntity fe) {
+        CanonicalPath cp = fe.entity.getPath();
+
+        return statements.insertEntity(cp.ids().getTenantId(), feedBuckets.partitionOf(cp),
+                cp.getSegment().getElementType().toString(), pathCache.render(cp), fe.entity.getName(),
+                fe.entity.getProperties(), fe.lowNum, fe.lowDen, fe.highNum, fe.highDen, fe.treePath, fe.depth,
+                fe.buckets)
+                .doOnTerminate(() -> invalidateCachedEntity(cp))
+                .flatMap(applied -> {
+                    if (applied) {
+                        return registerFeed(fe).toList().map(any -> fe);
+                    }
 
-            for (Entity.Blueprint child : children) {
-                RelativePath childAsNewParent = parent.modified().extend(type, child.getId()).get();
+                    freeSlotOf(fe);
+                    return readFullEntity(cp).flatMap(existing -> write(existing.withEntity(fe.entity)));
+                });
+    }
 
-                Entity childEntity = new Entity(childAsNewParent.applyTo(root), child.getName(), child.getProperties());
+    /**
+     * Without the lightweight transactions, two nodes can create the same entity at the same time, each in a
+     * different slot. The entity then ends up in the slot of the last write and the other slot would be lost for
+     * good, because the indices leased to a node are never handed out again. So we read the entity back and free our
+     * slot if it wasn't us who won. With a single node, the concurrent creations are taken care of by
+     * {@link #creationsInProgress}.
+     */
+    private Observable<FullEntity> checkCreated(FullEntity fe) {
+        if (!leaseChildIndices) {
+            return Observable.just(fe);
+        }
 
-                Observable<Void> childWork = upsert(childEntity)
-                        .concatWith(insertRecursively(struct, root, childAsNewParent));
+        CanonicalPath cp = fe.entity.getPath();
+        return readFullEntity(cp).map(stored -> {
+            if (!Objects.equals(stored.getSlot(), fe.getSlot())) {
+                freeSlotOf(fe);
+            }
+            return stored;
+        }).defaultIfEmpty(fe);
+    }
+
+    private void freeSlotOf(FullEntity fe) {
+        CanonicalPath parent = fe.entity.getPath().up();
+        Integer slot = fe.getSlot();
+        if (parent.isDefined() && slot != null) {
+            childrenCountCache.freeSlot(parent, slot);
+        }
+    }
+
+    /**
+     * Figures out the position of the new entity in the tree. Nothing is written yet, but the position is reserved
+     * in the children count cache.
+     */
+    private Observable<FullEntity> prepareCreate(Entity entity) {
+        String tenantId = entity.getPath().ids().getTenantId();
+        String entityPath = pathCache.render(entity.getPath());
+        //get a new standalone CP with no reference to the original path (which the mere .up() call keeps)
+        CanonicalPath parentPath = entity.getPath().up().modified().get();
 
-                work = work.mergeWith(childWork);
+        if (!parentPath.isDefined()) {
+            FullEntity fe = new FullEntity();
+            fe.entity = entity;
+            fe.lowNum = 0L;
+            fe.lowDen = 1L;
+            fe.highNum = 1L;
+            fe.highDen = 1L;
+            fe.treePath = Collections.singletonList(1);
+            fe.depth = 1;
+            childrenCountCache.created(entity.getPath());
+
+            return Observable.just(fe);
+        } else {
+            String parentType = parentPath.getSegment().getElementType().toString();
+            String parentFeedId = feedBuckets.partitionOf(parentPath);
+
+            return findFullEntity(parentPath)
+                    .flatMap(parent -> {
+                        Log.LOG.trace("IN UPSERT: Found parent " + parentPath + " while creating "
+                                + entityPath);
+                        return prepareCreate(entity, parent);
+                    }).switchIfEmpty(Observable.error(new EntityNotFoundException("Could not create "
+                            + entity.getPath() + ", because the parent (" + parentPath + ") was not found."
+                            + " (Executed findByPath with args: tenantId: " + tenantId + ", feedId: "
+                            + parentFeedId + ", entityType: " + parentType + ", entityPath: "
+                            + parentPath.toString() + ").")));
+        }
+    }
+
+    private Observable<FullEntity> prepareCreate(Entity entity, FullEntity parent) {
+        return childrenCountCache.allocateSlot(parent.entity.getPath()).map(slot -> {
+            List<Integer> treePath = new ArrayList<>(parent.treePath.size() + 1);
+            treePath.addAll(parent.treePath);
+            treePath.add(slot);
+
+            FareySequence.Interval interval;
+            try {
+                interval = FareySequence.intervalForPath(treePath);
+            } catch (ArithmeticException e) {
+                //renumber the partition so that the entity can be created once the caller retries
+                reencodeInBackground(entity.getPath());
+                throw e;
+            }
+
+            if (queueExhaustedPartitions
+                    && Math.max(interval.getLow().denominator, interval.getHigh().denominator) > REENCODING_THRESHOLD) {
+                CanonicalPath cp = entity.getPath();
+                exhaustedPartitions.add(Arrays.asList(cp.ids().getTenantId(), feedBuckets.partitionOf(cp)));
+            }
+
+            FullEntity fe = new FullEntity();
+            fe.entity = entity;
+            fe.lowNum = interval.getLow().numerator;
+            fe.lowDen = interval.getLow().denominator;
+            fe.highNum = interval.getHigh().numerator;
+            fe.highDen = interval.getHigh().denominator;
+            fe.treePath = treePath;
+            fe.depth = treePath.size();
+            if (entity.getPath().getSegment().getElementType() == SegmentType.f) {
+                fe.buckets = feedBuckets.assignBuckets(entity.getPath());
             }
+
+            //a new entity has no children, so there's no need to look for them when creating the first one
+            childrenCountCache.created(entity.getPath());
+
+            return fe;
+        });
+    }
+
+    /**
+     * Reads the indices of the existing children of the entity among their siblings. Only the children of the entity
+     * are read, using the depth index, instead of the whole partition.
+     */
+    private Observable<Integer> childIndicesOf(CanonicalPath parent) {
+        String tenantId = parent.ids().getTenantId();
+        String parentPath = pathCache.render(parent);
+        int childDepth = parent.getPath().size() + 1;
+
+        Observable<Row> children = Observable.from(feedBuckets.descendantPartitionsOf(parent))
+                .flatMap(feedId -> Observable.from(DESCENDANT_TYPES)
+                        .flatMap(type -> statements.getChildTreePathsOfType(tenantId, feedId, type.toString(),
+                                parentPath, childDepth)));
+
+        if (parent.getSegment().getElementType() == SegmentType.t) {
+            //the feeds are the children of the tenant, but each lives in its own partition
+            Observable<Row> feeds = statements.findFeedsOfTenant(tenantId)
+                    .flatMap(r -> {
+                        CanonicalPath feed = parent.modified().extend(SegmentType.f, r.getString("feedId")).get();
+                        return statements.findByPath(tenantId, r.getString("partitionKey"), SegmentType.f.toString(),
+                                pathCache.render(feed));
+                    });
+
+            children = children.mergeWith(feeds);
         }
 
-        return work;
+        return children.map(r -> r.getList("treePath", Integer.class))
+                .filter(treePath -> !treePath.isEmpty())
+                .map(treePath -> treePath.get(treePath.size() - 1));
+    }
+
+    /**
+     * {@link #reencodePartition(String, String) Re-encodes} the partitions in which entities close to the precision
+     * limit of the tree intervals were created since the last call. The partitions are only collected if the
+     * re-encoding interval is configured. Failures to re-encode individual partitions are logged and don't prevent
+     * the re-encoding of the others.
+     *
+     * @return the total number of entities that got new positions
+     */
+    public Observable<Integer> reencodeExhaustedPartitions() {
+        return Observable.defer(() -> {
+            List<List<String>> partitions = new ArrayList<>(exhaustedPartitions);
+            exhaustedPartitions.removeAll(partitions);
+
+            return Observable.from(partitions)
+                    .concatMap(p -> reencodePartition(p.get(0), p.get(1)).onErrorResumeNext(e -> {
+                        Log.LOG.warnReencodingFailed(p.get(0), p.get(1), e);
+                        return Observable.just(0);
+                    }))
+                    .reduce(0, (a, b) -> a + b);
+        });
+    }
+
+    /**
+     * Renumbers the children of the entities in the partition so that their indices are compact again, i.e. without
+     * the gaps left by the deleted entities, and recomputes the intervals of the entities accordingly. The tenants
+     * and their direct children, including the feeds, keep their positions.
+     *
+     * <p>The re-encoding waits for the upserts and syncs in progress in the partition and the new ones wait for the
+     * re-encoding, so that no entity is positioned using the indices from before the re-encoding. This only holds
+     * for the writes on this node, the re-encoding is not meant for the deployments with more nodes (see below).
+     *
+     * <p>The new positions of each subtree under the feed (or the tenant) are written in conditional batches of at
+     * most the maximum batch size. Each update only applies if the entity still has the position it was re-encoded
+     * from, so a deleted or moved entity fails the batch. If the partition changes in the meantime, the re-encoding
+     * is retried. The retry starts from the partially re-encoded partition and finishes its re-encoding.
+     *
+     * <p>Because a subtree can be larger than a single batch, its re-encoding is not atomic. Until all the batches of
+     * the subtree are applied, some of its entities already have the new positions while the others still have the
+     * old ones. The positions of such entities are not consistent with each other: an already renumbered child can
+     * share its index and interval with a sibling that is yet to be renumbered, and a descendant's interval may lie
+     * outside of its ancestor's. Nothing reads the subtrees by their intervals, so the readers are not affected, but
+     * the treePaths can't be relied upon until the re-encoding (or its retry) finishes. If all the attempts fail,
+     * the partition stays in such state until it is re-encoded again, which the failure queues if the periodic
+     * re-encoding is configured.
+     *
+     * <p>Nothing is re-encoded if the indices of the children are leased, because the renumbered children could take
+     * the indices leased to other nodes.
+     *
+     * @return the number of entities that got new positions
+     */
+    public Observable<Integer> reencodePartition(String tenantId, String feedId) {
+        return Observable.defer(() -> {
+            if (leaseChildIndices) {
+                return Observable.just(0);
+            }
+
+            List<String> partition = Arrays.asList(tenantId, feedId);
+            //the allocations are looked at only after the re-encoding is registered, so that none is missed
+            Observable<Integer> reencoding = Observable.defer(() -> Observable.from(slotAllocations))
+                    .filter(a -> a.covers(tenantId, feedId))
+                    .flatMap(a -> a.done)
+                    .toList()
+                    .concatMap(any -> reencodePartition(tenantId, feedId, MAX_REENCODING_ATTEMPTS))
+                    .doOnNext(count -> {
+                        if (count > 0) {
+                            Log.LOG.infoPartitionReencoded(count, tenantId, feedId);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (queueExhaustedPartitions) {
+                            exhaustedPartitions.add(partition);
+                        }
+                    })
+                    .doOnTerminate(() -> reencodings.remove(partition))
+                    .cache();
+
+            if (reencodings.putIfAbsent(partition, reencoding) != null) {
+                return Observable.just(0);
+            }
+
+            return reencoding;
+        });
+    }
+
+    private void reencodeInBackground(CanonicalPath cp) {
+        String tenantId = cp.ids().getTenantId();
+        String feedId = feedBuckets.partitionOf(cp);
+
+        reencodePartition(tenantId, feedId)
+                .subscribe(any -> {}, e -> Log.LOG.warnReencodingFailed(tenantId, feedId, e));
+    }
+
+    /**
+     * Runs the work that allocates the positions of new entities in the partitions once no re-encoding of them is in
+     * progress. The re-encodings started in the meantime wait for the work to finish.
+     *
+     * @param partitions the feed IDs of the partitions the work writes to or null for the whole tenant
+     */
+    private <T> Observable<T> allocatingSlots(String tenantId, List<String> partitions, Observable<T> work) {
+        return Observable.defer(() -> {
+            SlotAllocation allocation = new SlotAllocation(tenantId, partitions);
+            //register first, so that either we see the re-encoding or the re-encoding sees us
+            slotAllocations.add(allocation);
+            Action0 finish = () -> {
+                slotAllocations.remove(allocation);
+                allocation.done.onCompleted();
+            };
+
+            Observable<Integer> reencoding = reencodings.entrySet().stream()
+                    .filter(e -> allocation.covers(e.getKey().get(0), e.getKey().get(1)))
+                    .map(Map.Entry::getValue)
+                    .findAny().orElse(null);
+
+            if (reencoding != null) {
+                finish.call();
+                return reencoding.onErrorReturn(e -> 0).last()
+                        .concatMap(any -> allocatingSlots(tenantId, partitions, work));
+            }
+
+            return work.doOnTerminate(finish).doOnUnsubscribe(finish);
+        });
+    }
+
+    private Observable<Integer> reencodePartition(String tenantId, String feedId, int attemptsLeft) {
+        return statements.getAllEntitiesInPartition(tenantId, feedId)
+                .map(r -> FullEntity.fromRow(r, pathCache)).toList()
+                .concatMap(entities -> (entities.isEmpty()
+                        ? Observable.just(1)
+                        : feedBuckets.load(entities.get(0).entity.getPath())).map(any -> entities))
+                .concatMap(entities -> {
+                    Reencoding reencoding = computeReencoding(tenantId, feedId, entities);
+
+                    return Observable.from(reencoding.batches.values())
+                            .concatMap(statements::executeConditionalBatches)
+                            .all(applied -> applied)
+                            .doOnNext(any -> invalidateCachedPartitions(tenantId,
+                                    Collections.singletonList(feedId)))
+                            .concatMap(allApplied -> statements.getAllEntityPathsInPartition(tenantId, feedId)
+                                    .map(r -> r.getString(0))
+                                    .toList()
+                                    .map(paths -> allApplied && new HashSet<>(paths).equals(reencoding.paths)))
+                            .concatMap(stable -> {
+                                if (stable) {
+                                    reencoding.childrenCounts.forEach(childrenCountCache::resetSlots);
+                                    return Observable.just(reencoding.changed);
+                                } else if (attemptsLeft > 1) {
+                                    return reencodePartition(tenantId, feedId, attemptsLeft - 1);
+                                } else {
+                                    return Observable.error(new IllegalStateException("The entities of tenant '"
+                                            + tenantId + "' and feed '" + feedId + "' kept changing while being"
+                                            + " re-encoded."));
+                                }
+                            });
+                });
+    }
+
+    /**
+     * Computes the new positions of the entities in the partition. The children of each entity are renumbered in the
+     * order of their current indices.
+     *
+     * @throws ArithmeticException if the new positions still cannot be expressed
+     */
+    private Reencoding computeReencoding(String tenantId, String feedId, List<FullEntity> entities) {
+        Reencoding ret = new Reencoding();
+        Map<CanonicalPath, List<FullEntity>> children = new HashMap<>();
+        Map<CanonicalPath, List<Integer>> newTreePaths = new HashMap<>();
+        Map<CanonicalPath, CanonicalPath> subtreeRoots = new HashMap<>();
+        Deque<CanonicalPath> todo = new ArrayDeque<>();
+
+        for (FullEntity fe : entities) {
+            CanonicalPath cp = fe.entity.getPath();
+            ret.paths.add(pathCache.render(cp));
+            //the direct children of bucketed feeds are spread over several partitions, so they can't be renumbered
+            //by looking at a single partition
+            int fixedDepth = feedBuckets.isBucketed(cp) ? 3 : 2;
+            if (fe.depth > fixedDepth) {
+                children.computeIfAbsent(cp.up(), any -> new ArrayList<>()).add(fe);
+            } else {
+                newTreePaths.put(cp, fe.treePath);
+                todo.add(cp);
+            }
+        }
+
+        Comparator<FullEntity> byIndex = Comparator
+                .comparing((FullEntity fe) -> fe.treePath.get(fe.treePath.size() - 1))
+                .thenComparing(fe -> pathCache.render(fe.entity.getPath()));
+
+        while (!todo.isEmpty()) {
+            CanonicalPath parent = todo.poll();
+            List<FullEntity> siblings = children.get(parent);
+            if (siblings == null) {
+                continue;
+            }
+
+            siblings.sort(byIndex);
+            List<Integer> parentTreePath = newTreePaths.get(parent);
+            CanonicalPath parentSubtree = subtreeRoots.get(parent);
+
+            for (int i = 0; i < siblings.size(); ++i) {
+                FullEntity fe = siblings.get(i);
+                CanonicalPath cp = fe.entity.getPath();
+                CanonicalPath subtree = parentSubtree == null ? cp : parentSubtree;
+
+                List<Integer> treePath = new ArrayList<>(parentTreePath.size() + 1);
+                treePath.addAll(parentTreePath);
+                treePath.add(i + 1);
+
+                newTreePaths.put(cp, treePath);
+                subtreeRoots.put(cp, subtree);
+                todo.add(cp);
+
+                if (!treePath.equals(fe.treePath)) {
+                    FareySequence.Interval interval = FareySequence.intervalForPath(treePath);
+                    FareySequence.RationalNumber low = interval.getLow();
+                    FareySequence.RationalNumber high = interval.getHigh();
+
+                    ret.batches.computeIfAbsent(subtree, any -> new ArrayList<>())
+                            .add(statements.bindUpdateCoordinatesIfUnchanged(tenantId, feedId,
+                                    cp.getSegment().getElementType().toString(), pathCache.render(cp),
+                                    low.numerator, low.denominator, high.numerator, high.denominator, treePath,
+                                    fe.treePath));
+                    ret.changed++;
+                }
+            }
+
+            ret.childrenCounts.put(parent, siblings.size());
+        }
+
+        return ret;
+    }
+
+    /**
+     * Writes the full row of the entity unconditionally, overwriting any existing data.
+     */
+    private Observable<FullEntity> write(FullEntity fe) {
+        CanonicalPath cp = fe.entity.getPath();
+        String tenantId = cp.ids().getTenantId();
+        String feedId = feedBuckets.partitionOf(cp);
+        String entityType = cp.getSegment().getElementType().toString();
+        String entityPath = pathCache.render(cp);
+
+        return registerFeed(fe).concatWith(statements.upsertEntity(tenantId, feedId, entityType, entityPath,
+                fe.entity.getName(), fe.entity.getProperties(), fe.lowNum, fe.lowDen, fe.highNum, fe.highDen,
+                fe.treePath, fe.depth, fe.buckets))
+                .doOnTerminate(() -> invalidateCachedEntity(cp))
+                .map(any -> fe);
+    }
+
+    /**
+     * The feeds are also stored in the feed table, which is where the buckets of the feeds are read from and where
+     * the feeds of a tenant are listed.
+     */
+    private Observable<Void> registerFeed(FullEntity fe) {
+        if (!isFeed(fe)) {
+            return Observable.empty();
+        }
+
+        CanonicalPath cp = fe.entity.getPath();
+        return statements.insertFeed(cp.ids().getTenantId(), cp.ids().getFeedId(),
+                fe.buckets == null ? 1 : fe.buckets, feedBuckets.partitionOf(cp)).ignoreElements();
+    }
+
+    private Statement bindInsertFeed(FullEntity fe) {
+        CanonicalPath cp = fe.entity.getPath();
+        return statements.bindInsertFeed(cp.ids().getTenantId(), cp.ids().getFeedId(),
+                fe.buckets == null ? 1 : fe.buckets, feedBuckets.partitionOf(cp));
+    }
+
+    private static boolean isFeed(FullEntity fe) {
+        return fe.entity.getPath().getSegment().getElementType() == SegmentType.f;
+    }
+
+    private Statement bindUpsert(FullEntity fe) {
+        CanonicalPath cp = fe.entity.getPath();
+
+        return statements.bindUpsertEntity(cp.ids().getTenantId(), feedBuckets.partitionOf(cp),
+                cp.getSegment().getElementType().toString(), pathCache.render(cp), fe.entity.getName(),
+                fe.entity.getProperties(), fe.lowNum, fe.lowDen, fe.highNum, fe.highDen, fe.treePath, fe.depth,
+                fe.buckets);
     }
 
     private void initSchema(Session session, String keyspace) {
@@ -480,6 +1738,32 @@ public class InventoryStorage {
 
     }
 
+    /**
+     * Registers the feeds stored before the feed table was introduced in it, together with the partitions they are
+     * stored in, i.e. their unescaped feed IDs. This runs only once per keyspace, the completion is recorded in the
+     * sys_config table.
+     */
+    private void registerExistingFeeds(Session session, String keyspace) {
+        Row done = session.execute("SELECT value FROM " + keyspace + ".sys_config WHERE" +
+                " config_id = 'org.hawkular.inventory' AND name = 'feeds-registered'").one();
+        if (done != null && Boolean.parseBoolean(done.getString(0))) {
+            return;
+        }
+
+        //the partition the feed row is stored in is the partition key of the feed, whatever its feed ID
+        Observable<Statement> inserts = statements.getAllFeedEntities()
+                .map(r -> statements.bindInsertFeed(r.getString("tenantId"),
+                        CanonicalPath.fromString(r.getString("entityPath")).ids().getFeedId(),
+                        r.isNull("buckets") ? 1 : r.getInt("buckets"), r.getString("feedId")));
+
+        int registered = statements.executeInBatches(inserts).count().toBlocking().single();
+
+        session.execute("INSERT INTO " + keyspace + ".sys_config (config_id, name, value) VALUES" +
+                " ('org.hawkular.inventory', 'feeds-registered', 'true')");
+
+        Log.LOG.infoFeedsRegistered(registered);
+    }
+
     private String getCassandraInventoryVersion() {
         try {
             Enumeration<URL> resources = getClass().getClassLoader().getResources("META-INF/MANIFEST.MF");
@@ -500,42 +1784,108 @@ public class InventoryStorage {
         }
     }
 
+    private static final class SyncCounter {
+        int added;
+        int updated;
+        int unchanged;
+
+        SyncResult toResult(int deleted) {
+            return new SyncResult(added, updated, deleted, unchanged);
+        }
+    }
+
+    private static final class Reencoding {
+        final Set<String> paths = new HashSet<>();
+        final Map<CanonicalPath, List<Statement>> batches = new LinkedHashMap<>();
+        final Map<CanonicalPath, Integer> childrenCounts = new HashMap<>();
+        int changed;
+    }
+
+    /**
+     * The work allocating the positions of new entities in some partitions of a tenant.
+     */
+    private static final class SlotAllocation {
+        final String tenantId;
+        final List<String> partitions;
+        final AsyncSubject<Void> done = AsyncSubject.create();
+
+        SlotAllocation(String tenantId, List<String> partitions) {
+            this.tenantId = tenantId;
+            this.partitions = partitions;
+        }
+
+        boolean covers(String tenantId, String feedId) {
+            return this.tenantId.equals(tenantId) && (partitions == null || partitions.contains(feedId));
+        }
+    }
+
+    private static final class CachedEntity {
+        final FullEntity entity;
+        final long readAt;
+
+        CachedEntity(FullEntity entity, long readAt) {
+            this.entity = entity;
+            this.readAt = readAt;
+        }
+    }
+
     private static final class FullEntity {
         Entity entity;
-        BigDecimal low;
-        BigDecimal high;
         long lowNum;
         long lowDen;
         long highNum;
         long highDen;
         List<Integer> treePath;
         int depth;
+        Integer buckets;
 
-        static FullEntity fromRow(Row r) {
+        static FullEntity fromRow(Row r, PathCache pathCache) {
             FullEntity fe = new FullEntity();
-            Entity e = new Entity(CanonicalPath.fromString(r.getString("entityPath")), r.getString("name"),
+            Entity e = new Entity(pathCache.parse(r.getString("entityPath")), r.getString("name"),
                     r.getMap("properties", String.class, String.class));
 
             fe.entity = e;
-            fe.low = r.getDecimal("low");
-            fe.high = r.getDecimal("high");
             fe.lowNum = r.getLong("lowNum");
             fe.lowDen = r.getLong("lowDen");
             fe.highNum = r.getLong("highNum");
             fe.highDen = r.getLong("highDen");
             fe.treePath = r.getList("treePath", Integer.class);
             fe.depth = r.getInt("depth");
+            fe.buckets = r.isNull("buckets") ? null : r.getInt("buckets");
+
+            return fe;
+        }
+
+        /**
+         * @return a copy of this with the entity replaced by the provided one, keeping the position in the tree
+         */
+        FullEntity withEntity(Entity entity) {
+            FullEntity fe = new FullEntity();
+            fe.entity = entity;
+            fe.lowNum = lowNum;
+            fe.lowDen = lowDen;
+            fe.highNum = highNum;
+            fe.highDen = highDen;
+            fe.treePath = treePath;
+            fe.depth = depth;
+            fe.buckets = buckets;
 
             return fe;
         }
 
+        /**
+         * @return the index of the entity among its siblings
+         */
+        Integer getSlot() {
+            return treePath.isEmpty() ? null : treePath.get(treePath.size() - 1);
+        }
+
         @Override public String toString() {
-            return "FullEntity[depth=" + depth +
+            return "FullEntity[buckets=" + buckets +
+                    ", depth=" + depth +
                     ", entity=" + entity +
-                    ", high=" + high +
                     ", highDen=" + highDen +
                     ", highNum=" + highNum +
-                    ", low=" + low +
                     ", lowDen=" + lowDen +
                     ", lowNum=" + lowNum +
                     ", treePath=" + treePath +
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * A bounded cache of the parsed canonical paths and of their string forms, shared by everything that reads paths from
+ * the rows or binds them to the statements.
+ *
+ * <p>Parsing the same string again returns the same instance, so the entities read repeatedly, as well as the
+ * entities and relationships referring to each other, share their path objects instead of each allocating its own.
+ * The string form of the parsed paths is remembered too, so that the paths read from the rows don't need to be rendered
+ * again every time they are bound to a statement.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+final class PathCache {
+    private final Cache<String, CanonicalPath> parsed;
+    /**
+     * The weak keys are compared by identity, which is much cheaper than comparing the paths.
+     */
+    private final Cache<CanonicalPath, String> rendered;
+
+    PathCache(long capacity) {
+        parsed = Caffeine.newBuilder().maximumSize(Math.max(capacity, 0)).build();
+        rendered = Caffeine.newBuilder().maximumSize(Math.max(capacity, 0)).weakKeys().build();
+    }
+
+    /**
+     * Same as {@link CanonicalPath#fromString(String)} but returns the same instance for the same string as long as it
+     * stays in the cache.
+     */
+    public CanonicalPath parse(String path) {
+        return parsed.get(path, p -> {
+            CanonicalPath cp = CanonicalPath.fromString(p);
+            rendered.put(cp, p);
+            return cp;
+        });
+    }
+
+    /**
+     * Same as {@link CanonicalPath#toString()} but returns the original string of the paths obtained from
+     * {@link #parse(String)} as long as they stay in the cache. The other paths are rendered as usual and not cached,
+     * because most of them are only rendered once.
+     */
+    public String render(CanonicalPath path) {
+        String ret = rendered.getIfPresent(path);
+        return ret == null ? path.toString() : ret;
+    }
+}
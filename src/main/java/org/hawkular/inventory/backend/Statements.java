@@ -16,19 +16,33 @@
  */
 package org.hawkular.inventory.backend;
 
-import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.hawkular.inventory.paths.CanonicalPath;
 import org.hawkular.rx.cassandra.driver.RxSession;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.PagingStateException;
 
 import rx.Observable;
+import rx.functions.Func2;
 
 /**
  * @author Lukas Krejci
@@ -39,17 +53,56 @@ final class Statements {
     private static final String TBL_RELATIONSHIP = "relationship";
     private static final String TBL_RELATIONSHIP_OUT = "relationship_out";
     private static final String TBL_RELATIONSHIP_IN = "relationship_in";
+    private static final String TBL_CHILD_INDEX_LEASE = "childIndexLease";
+    private static final String TBL_RECYCLED_CHILD_INDICES = "recycledChildIndices";
+    private static final String TBL_FEED = "feed";
+    /**
+     * How long a batch that isn't full waits for more statements before it is executed anyway.
+     */
+    private static final long BATCH_LINGER_MILLIS = 10;
+    /**
+     * Tells {@link #executeInBatches(Observable)} to execute the batches that aren't full yet.
+     */
+    private static final Object FLUSH = new Object();
 
     private final RxSession session;
     private final Session cassSession;
+    private final int maxBatchSize;
+    private final int maxInFlightRequests;
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicInteger peakInFlightRequests = new AtomicInteger();
+    private final AtomicInteger queuedStatements = new AtomicInteger();
     private final PreparedStatement findByPath;
-    private final PreparedStatement getAllEntityPaths;
+    private final PreparedStatement findByPaths;
     private final PreparedStatement insertEntity;
+    private final PreparedStatement upsertEntity;
     private final PreparedStatement deleteEntity;
-    private final PreparedStatement getAllChildrenPaths;
-    private final PreparedStatement getAllChildren;
+    private final PreparedStatement deleteEntityRange;
+    private final PreparedStatement deletePartition;
+    private final PreparedStatement getAllEntityPathsInPartition;
+    private final PreparedStatement getDescendantPathsOfType;
+    private final PreparedStatement getDescendantsOfType;
+    private final PreparedStatement getChildrenOfType;
+    private final PreparedStatement getChildTreePathsOfType;
     private final PreparedStatement updateEntityIfExists;
+    private final PreparedStatement getAllEntitiesInPartition;
+    private final PreparedStatement updateCoordinatesIfUnchanged;
+    private final PreparedStatement findChildIndexLease;
+    private final PreparedStatement createChildIndexLease;
+    private final PreparedStatement advanceChildIndexLease;
+    private final PreparedStatement insertFeed;
+    private final PreparedStatement findFeed;
+    private final PreparedStatement findFeedsOfTenant;
+    private final PreparedStatement getAllFeedEntities;
+    private final PreparedStatement getTenantIdsWithFeeds;
+    private final PreparedStatement deleteFeed;
+    private final PreparedStatement deleteFeedsOfTenant;
+    private final PreparedStatement findRecycledChildIndices;
+    private final PreparedStatement insertRecycledChildIndices;
+    private final PreparedStatement claimRecycledChildIndices;
+    private final PreparedStatement deleteAllRecycledChildIndices;
     private final PreparedStatement insertRelationship;
+    private final PreparedStatement upsertRelationship;
     private final PreparedStatement insertRelationshipOut;
     private final PreparedStatement insertRelationshipIn;
     private final PreparedStatement findOutRelationships;
@@ -60,32 +113,97 @@ final class Statements {
     private final PreparedStatement deleteRelationship;
     private final PreparedStatement deleteOutRelationship;
     private final PreparedStatement deleteInRelationship;
+    private final PreparedStatement findAllOutRelationships;
+    private final PreparedStatement findAllInRelationships;
+    private final PreparedStatement deleteAllOutRelationships;
+    private final PreparedStatement deleteAllInRelationships;
+
+    public Statements(RxSession session, Session cassSession, int maxBatchSize, int maxInFlightRequests) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("The maximum batch size must be positive.");
+        }
+        if (maxInFlightRequests <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight requests must be positive.");
+        }
 
-    public Statements(RxSession session, Session cassSession) {
         this.session = session;
         this.cassSession = cassSession;
+        this.maxBatchSize = maxBatchSize;
+        this.maxInFlightRequests = maxInFlightRequests;
         this.findByPath = prepare(session, "SELECT * FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ?" +
                 " AND entityType = ? AND entityPath = ?");
-        this.getAllEntityPaths = prepare(session, "SELECT entityPath FROM " + TBL_ENTITY_TREE);
+        this.findByPaths = prepare(session, "SELECT entityPath, name, properties FROM " + TBL_ENTITY_TREE +
+                " WHERE tenantId = ? AND feedId = ? AND entityType IN ? AND entityPath IN ?");
         //"update" intentional, because C*'s update is actually an upsert
         this.insertEntity = prepare(session, "INSERT INTO " + TBL_ENTITY_TREE
-                + " (name, properties, low, high, lowNum, lowDen, highNum, highDen, treePath, depth, tenantId," +
-                " feedId, entityType, entityPath) VALUES" +
-                "   ( ?  ,    ?      ,  ? ,   ? ,   ?   ,    ?  ,   ?    ,   ?    ,   ?     ,  ?   ,       ? ," +
-                "    ?  ,    ?      ,    ?      ) IF NOT EXISTS");
+                + " (name, properties, lowNum, lowDen, highNum, highDen, treePath, depth, tenantId, feedId," +
+                " entityType, entityPath, buckets) VALUES" +
+                "   ( ?  ,    ?      ,   ?   ,    ?  ,   ?    ,   ?    ,   ?     ,  ?   ,       ? ,    ?  ," +
+                "     ?     ,    ?      ,    ?   ) IF NOT EXISTS");
+        this.upsertEntity = prepare(session, "INSERT INTO " + TBL_ENTITY_TREE
+                + " (name, properties, lowNum, lowDen, highNum, highDen, treePath, depth, tenantId, feedId," +
+                " entityType, entityPath, buckets) VALUES" +
+                "   ( ?  ,    ?      ,   ?   ,    ?  ,   ?    ,   ?    ,   ?     ,  ?   ,       ? ,    ?  ," +
+                "     ?     ,    ?      ,    ?   )").setIdempotent(true);
         this.deleteEntity = prepare(session, "DELETE FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ?" +
                 " AND entityType = ? AND entityPath = ?");
-        this.getAllChildrenPaths = prepare(session,
-                "SELECT entityPath FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ? AND low > ?" +
-                        " AND high <= ? ALLOW FILTERING");
-        this.getAllChildren = prepare(session,
-                "SELECT * FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ? AND low > ?" +
-                        " AND high <= ? ALLOW FILTERING");
+        this.deleteEntityRange = prepare(session, "DELETE FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND" +
+                " feedId = ? AND entityType = ? AND entityPath > ? AND entityPath < ?");
+        this.deletePartition = prepare(session, "DELETE FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND" +
+                " feedId = ?");
+        this.getAllEntityPathsInPartition = prepare(session, "SELECT entityPath FROM " + TBL_ENTITY_TREE
+                + " WHERE tenantId = ? AND feedId = ?");
+        this.getDescendantPathsOfType = prepare(session,
+                "SELECT entityPath FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ? AND entityType = ?" +
+                        " AND entityPath > ? AND entityPath < ?");
+        this.getDescendantsOfType = prepare(session,
+                "SELECT * FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ? AND entityType = ?" +
+                        " AND entityPath > ? AND entityPath < ?");
+        this.getChildrenOfType = prepare(session,
+                "SELECT * FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ? AND entityType = ?" +
+                        " AND entityPath > ? AND entityPath < ? AND depth = ? ALLOW FILTERING");
+        this.getChildTreePathsOfType = prepare(session,
+                "SELECT treePath FROM " + TBL_ENTITY_TREE + " WHERE tenantId = ? AND feedId = ? AND entityType = ?" +
+                        " AND entityPath > ? AND entityPath < ? AND depth = ? ALLOW FILTERING");
         this.updateEntityIfExists = prepare(session,
                 "UPDATE " + TBL_ENTITY_TREE + " SET name = ?, properties = ? WHERE tenantId = ? AND feedId = ? " +
                         "AND entityType = ? AND entityPath = ? IF EXISTS");
+        this.getAllEntitiesInPartition = prepare(session, "SELECT * FROM " + TBL_ENTITY_TREE
+                + " WHERE tenantId = ? AND feedId = ?");
+        this.updateCoordinatesIfUnchanged = prepare(session, "UPDATE " + TBL_ENTITY_TREE + " SET lowNum = ?," +
+                " lowDen = ?, highNum = ?, highDen = ?, treePath = ? WHERE tenantId = ? AND feedId = ? AND" +
+                " entityType = ? AND entityPath = ? IF treePath = ?");
+        this.insertFeed = prepare(session, "INSERT INTO " + TBL_FEED + " (tenantId, feedId, buckets, partitionKey)"
+                + " VALUES (?, ?, ?, ?)").setIdempotent(true);
+        this.findFeed = prepare(session, "SELECT buckets, partitionKey FROM " + TBL_FEED + " WHERE tenantId = ? AND"
+                + " feedId = ?");
+        this.findFeedsOfTenant = prepare(session, "SELECT feedId, buckets, partitionKey FROM " + TBL_FEED
+                + " WHERE tenantId = ?");
+        //a full scan, only used once to register the feeds stored before the feed table was introduced
+        this.getAllFeedEntities = prepare(session, "SELECT tenantId, feedId, entityPath, buckets FROM "
+                + TBL_ENTITY_TREE + " WHERE entityType = 'f' ALLOW FILTERING");
+        //only reads the partition keys, not the feeds
+        this.getTenantIdsWithFeeds = prepare(session, "SELECT DISTINCT tenantId FROM " + TBL_FEED);
+        this.deleteFeed = prepare(session, "DELETE FROM " + TBL_FEED + " WHERE tenantId = ? AND feedId = ?");
+        this.deleteFeedsOfTenant = prepare(session, "DELETE FROM " + TBL_FEED + " WHERE tenantId = ?");
+        this.findChildIndexLease = prepare(session, "SELECT nextUnused FROM " + TBL_CHILD_INDEX_LEASE
+                + " WHERE parentPath = ?");
+        this.createChildIndexLease = prepare(session, "INSERT INTO " + TBL_CHILD_INDEX_LEASE
+                + " (parentPath, nextUnused) VALUES (?, ?) IF NOT EXISTS");
+        this.advanceChildIndexLease = prepare(session, "UPDATE " + TBL_CHILD_INDEX_LEASE + " SET nextUnused = ?"
+                + " WHERE parentPath = ? IF nextUnused = ?");
+        this.findRecycledChildIndices = prepare(session, "SELECT fromIndex, toIndex FROM "
+                + TBL_RECYCLED_CHILD_INDICES + " WHERE parentPath = ? LIMIT ?");
+        this.insertRecycledChildIndices = prepare(session, "INSERT INTO " + TBL_RECYCLED_CHILD_INDICES
+                + " (parentPath, fromIndex, toIndex) VALUES (?, ?, ?)").setIdempotent(true);
+        this.claimRecycledChildIndices = prepare(session, "DELETE FROM " + TBL_RECYCLED_CHILD_INDICES
+                + " WHERE parentPath = ? AND fromIndex = ? IF EXISTS");
+        this.deleteAllRecycledChildIndices = prepare(session, "DELETE FROM " + TBL_RECYCLED_CHILD_INDICES
+                + " WHERE parentPath = ?");
         this.insertRelationship = prepare(session, "INSERT INTO " + TBL_RELATIONSHIP + " (cp, name, properties)" +
                 " VALUES (?, ?, ?) IF NOT EXISTS");
+        this.upsertRelationship = prepare(session, "INSERT INTO " + TBL_RELATIONSHIP + " (cp, name, properties)" +
+                " VALUES (?, ?, ?)").setIdempotent(true);
         this.insertRelationshipOut = prepare(session,
                 "INSERT INTO " + TBL_RELATIONSHIP_OUT + " (source_cp, name, target_cp, properties)" +
                         " VALUES (?, ?, ?, ?)");
@@ -110,37 +228,202 @@ final class Statements {
                 "DELETE FROM " + TBL_RELATIONSHIP_OUT + " WHERE source_cp = ? AND name = ? AND target_cp = ?");
         this.deleteInRelationship = prepare(session,
                 "DELETE FROM " + TBL_RELATIONSHIP_IN + " WHERE target_cp = ? AND name = ? AND source_cp = ?");
+        this.findAllOutRelationships = prepare(session,
+                "SELECT name, target_cp FROM " + TBL_RELATIONSHIP_OUT + " WHERE source_cp = ?");
+        this.findAllInRelationships = prepare(session,
+                "SELECT name, source_cp FROM " + TBL_RELATIONSHIP_IN + " WHERE target_cp = ?");
+        this.deleteAllOutRelationships = prepare(session,
+                "DELETE FROM " + TBL_RELATIONSHIP_OUT + " WHERE source_cp = ?");
+        this.deleteAllInRelationships = prepare(session,
+                "DELETE FROM " + TBL_RELATIONSHIP_IN + " WHERE target_cp = ?");
     }
 
     public Observable<Row> findByPath(String tenantId, String feedId, String entityType, String entityPath) {
         return lazyRows(findByPath.bind(tenantId, feedId, entityType, entityPath));
     }
 
-    public Observable<Row> getAllEntityPaths() {
-        return lazyRows(getAllEntityPaths.bind());
+    /**
+     * Reads the name and properties of all the entities with the provided paths in a single query. All the entities
+     * must live in the same partition.
+     */
+    public Observable<Row> findByPaths(String tenantId, String feedId, List<String> entityTypes,
+                                       List<String> entityPaths) {
+        return lazyRows(findByPaths.bind(tenantId, feedId, entityTypes, entityPaths));
     }
 
-    public Observable<Void>
+    /**
+     * @return whether the entity was inserted or not, because it already existed
+     */
+    public Observable<Boolean>
     insertEntity(String tenantId, String feedId, String entityType, String entityPath, String name,
-                 Map<String, String> properties, BigDecimal low, BigDecimal high, long lowNum, long lowDen,
-                 long highNum, long highDen, List<Integer> treePath, int depth) {
+                 Map<String, String> properties, long lowNum, long lowDen, long highNum, long highDen,
+                 List<Integer> treePath, int depth, Integer buckets) {
+
+        return lazyResultSet(withBuckets(insertEntity.bind(name, properties, lowNum, lowDen, highNum, highDen,
+                treePath, depth, tenantId, feedId, entityType, entityPath), buckets))
+                .map(ResultSet::wasApplied);
+    }
+
+    /**
+     * Unlike {@link #insertEntity(String, String, String, String, String, Map, long, long, long, long, List,
+     * int, Integer)} this doesn't check for the existence of the entity and therefore doesn't need a Paxos round. It
+     * is up to the caller to know whether the entity exists or not.
+     */
+    public Observable<Void>
+    upsertEntity(String tenantId, String feedId, String entityType, String entityPath, String name,
+                 Map<String, String> properties, long lowNum, long lowDen, long highNum, long highDen,
+                 List<Integer> treePath, int depth, Integer buckets) {
+
+        return lazyResultSet(bindUpsertEntity(tenantId, feedId, entityType, entityPath, name, properties, lowNum,
+                lowDen, highNum, highDen, treePath, depth, buckets)).map(r -> null);
+    }
+
+    /**
+     * Same as {@link #upsertEntity(String, String, String, String, String, Map, long, long, long, long, List,
+     * int, Integer)} but only prepares the statement so that it can be
+     * {@link #executeInBatches(Observable) executed in a batch}.
+     */
+    public BoundStatement
+    bindUpsertEntity(String tenantId, String feedId, String entityType, String entityPath, String name,
+                     Map<String, String> properties, long lowNum, long lowDen, long highNum, long highDen,
+                     List<Integer> treePath, int depth, Integer buckets) {
+        return withBuckets(upsertEntity.bind(name, properties, lowNum, lowDen, highNum, highDen, treePath, depth,
+                tenantId, feedId, entityType, entityPath), buckets);
+    }
+
+    /**
+     * Only feeds have the number of buckets. For all the other entities the column is left unset rather than bound
+     * to null, so that the writes don't produce tombstones.
+     */
+    private static BoundStatement withBuckets(BoundStatement st, Integer buckets) {
+        return buckets == null ? st : st.setInt("buckets", buckets);
+    }
+
+    public Observable<Row> getAllEntitiesInPartition(String tenantId, String feedId) {
+        return lazyRows(getAllEntitiesInPartition.bind(tenantId, feedId));
+    }
+
+    /**
+     * Binds the update of the position of an existing entity in the tree. The update only applies if the entity
+     * still has the old position, so that it neither resurrects an entity deleted in the meantime nor overwrites a
+     * position assigned concurrently.
+     */
+    public BoundStatement bindUpdateCoordinatesIfUnchanged(String tenantId, String feedId, String entityType,
+                                                           String entityPath, long lowNum, long lowDen,
+                                                           long highNum, long highDen, List<Integer> treePath,
+                                                           List<Integer> oldTreePath) {
+        return updateCoordinatesIfUnchanged.bind(lowNum, lowDen, highNum, highDen, treePath, tenantId, feedId,
+                entityType, entityPath, oldTreePath);
+    }
+
+    /**
+     * Registers the feed together with the number of buckets its entities are spread over and the partition key of the
+     * feed in the entity tree. The feed is registered under its feed ID as is.
+     */
+    public Observable<Void> insertFeed(String tenantId, String feedId, int buckets, String partitionKey) {
+        return lazyResultSet(bindInsertFeed(tenantId, feedId, buckets, partitionKey)).map(r -> null);
+    }
+
+    public BoundStatement bindInsertFeed(String tenantId, String feedId, int buckets, String partitionKey) {
+        return insertFeed.bind(tenantId, feedId, buckets, partitionKey);
+    }
+
+    public Observable<Row> findFeed(String tenantId, String feedId) {
+        return lazyRows(findFeed.bind(tenantId, feedId));
+    }
+
+    public Observable<Row> findFeedsOfTenant(String tenantId) {
+        return lazyRows(findFeedsOfTenant.bind(tenantId));
+    }
+
+    /**
+     * Reads the feed rows of the whole entity tree. Only meant to be used once to register the feeds stored before the
+     * feed table was introduced.
+     */
+    public Observable<Row> getAllFeedEntities() {
+        return lazyRows(getAllFeedEntities.bind());
+    }
+
+    /**
+     * Reads the IDs of all the tenants that have at least one feed.
+     */
+    public Observable<Row> getTenantIdsWithFeeds() {
+        return lazyRows(getTenantIdsWithFeeds.bind());
+    }
+
+    public BoundStatement bindDeleteFeed(String tenantId, String feedId) {
+        return deleteFeed.bind(tenantId, feedId);
+    }
+
+    public BoundStatement bindDeleteFeedsOfTenant(String tenantId) {
+        return deleteFeedsOfTenant.bind(tenantId);
+    }
+
+    public Observable<Row> findChildIndexLease(String parentPath) {
+        return lazyRows(findChildIndexLease.bind(parentPath));
+    }
+
+    /**
+     * @return true if the lease of the parent didn't exist and was created
+     */
+    public Observable<Boolean> createChildIndexLease(String parentPath, int nextUnused) {
+        return lazyResultSet(createChildIndexLease.bind(parentPath, nextUnused)).map(ResultSet::wasApplied);
+    }
+
+    /**
+     * @return true if no other lease of the indices of the children of the parent was made since the
+     * {@code expectedNextUnused} was read
+     */
+    public Observable<Boolean> advanceChildIndexLease(String parentPath, int nextUnused, int expectedNextUnused) {
+        return lazyResultSet(advanceChildIndexLease.bind(nextUnused, parentPath, expectedNextUnused))
+                .map(ResultSet::wasApplied);
+    }
+
+    public Observable<Row> findRecycledChildIndices(String parentPath, int limit) {
+        return lazyRows(findRecycledChildIndices.bind(parentPath, limit));
+    }
+
+    public Observable<Void> insertRecycledChildIndices(String parentPath, int fromIndex, int toIndex) {
+        return lazyResultSet(insertRecycledChildIndices.bind(parentPath, fromIndex, toIndex)).map(r -> null);
+    }
+
+    /**
+     * @return true if the recycled indices were still there and now belong to the caller
+     */
+    public Observable<Boolean> claimRecycledChildIndices(String parentPath, int fromIndex) {
+        return lazyResultSet(claimRecycledChildIndices.bind(parentPath, fromIndex)).map(ResultSet::wasApplied);
+    }
 
-        return lazyResultSet(insertEntity.bind(name, properties, low, high, lowNum, lowDen, highNum, highDen,
-                treePath, depth, tenantId, feedId, entityType, entityPath)).map(r -> null);
+    public BoundStatement bindDeleteAllRecycledChildIndices(String parentPath) {
+        return deleteAllRecycledChildIndices.bind(parentPath);
     }
 
     public Observable<Void> insertRelationship(String relCp, String name, Map<String, String> properties) {
         return lazyResultSet(insertRelationship.bind(relCp, name, properties)).map(r -> null);
     }
 
+    public BoundStatement bindUpsertRelationship(String relCp, String name, Map<String, String> properties) {
+        return upsertRelationship.bind(relCp, name, properties);
+    }
+
     public Observable<Void> insertRelationshipOut(String sourceCp, String name, String targetCp,
                                                   Map<String, String> properties) {
-        return lazyResultSet(insertRelationshipOut.bind(sourceCp, name, targetCp, properties)).map(r -> null);
+        return lazyResultSet(bindInsertRelationshipOut(sourceCp, name, targetCp, properties)).map(r -> null);
+    }
+
+    public BoundStatement bindInsertRelationshipOut(String sourceCp, String name, String targetCp,
+                                                    Map<String, String> properties) {
+        return insertRelationshipOut.bind(sourceCp, name, targetCp, properties);
     }
 
     public Observable<Void> insertRelationshipIn(String targetCp, String name, String sourceCp,
                                                  Map<String, String> properties) {
-        return lazyResultSet(insertRelationshipIn.bind(targetCp, name, sourceCp, properties)).map(r -> null);
+        return lazyResultSet(bindInsertRelationshipIn(targetCp, name, sourceCp, properties)).map(r -> null);
+    }
+
+    public BoundStatement bindInsertRelationshipIn(String targetCp, String name, String sourceCp,
+                                                   Map<String, String> properties) {
+        return insertRelationshipIn.bind(targetCp, name, sourceCp, properties);
     }
 
     public Observable<Void> updateRelationshipIfExists(String relCp, Map<String, String> properties) {
@@ -166,27 +449,119 @@ final class Statements {
     }
 
     public Observable<Void> deleteEntity(String tenantId, String feedId, String entityType, String entityPath) {
-        return lazyResultSet(deleteEntity.bind(tenantId, feedId, entityType, entityPath)).map(r -> null);
+        return lazyResultSet(bindDeleteEntity(tenantId, feedId, entityType, entityPath)).map(r -> null);
+    }
+
+    public BoundStatement bindDeleteEntity(String tenantId, String feedId, String entityType, String entityPath) {
+        return deleteEntity.bind(tenantId, feedId, entityType, entityPath);
+    }
+
+    public BoundStatement bindDeletePartition(String tenantId, String feedId) {
+        return deletePartition.bind(tenantId, feedId);
+    }
+
+    public Observable<Row> getAllEntityPathsInPartition(String tenantId, String feedId) {
+        return lazyRows(getAllEntityPathsInPartition.bind(tenantId, feedId));
     }
 
     public Observable<Void> deleteRelationship(String relCp) {
-        return lazyResultSet(deleteRelationship.bind(relCp)).map(x -> null);
+        return lazyResultSet(bindDeleteRelationship(relCp)).map(x -> null);
+    }
+
+    public BoundStatement bindDeleteRelationship(String relCp) {
+        return deleteRelationship.bind(relCp);
     }
 
     public Observable<Void> deleteOutRelationship(String sourceCp, String name, String targetCp) {
-        return lazyResultSet(deleteOutRelationship.bind(sourceCp, name, targetCp)).map(x -> null);
+        return lazyResultSet(bindDeleteOutRelationship(sourceCp, name, targetCp)).map(x -> null);
+    }
+
+    public BoundStatement bindDeleteOutRelationship(String sourceCp, String name, String targetCp) {
+        return deleteOutRelationship.bind(sourceCp, name, targetCp);
     }
 
     public Observable<Void> deleteInRelationship(String targetCp, String name, String sourceCp) {
-        return lazyResultSet(deleteInRelationship.bind(targetCp, name, sourceCp)).map(x -> null);
+        return lazyResultSet(bindDeleteInRelationship(targetCp, name, sourceCp)).map(x -> null);
+    }
+
+    public BoundStatement bindDeleteInRelationship(String targetCp, String name, String sourceCp) {
+        return deleteInRelationship.bind(targetCp, name, sourceCp);
+    }
+
+    public Observable<Row> findAllOutRelationships(String sourceCp) {
+        return lazyRows(findAllOutRelationships.bind(sourceCp));
+    }
+
+    public Observable<Row> findAllInRelationships(String targetCp) {
+        return lazyRows(findAllInRelationships.bind(targetCp));
     }
 
-    public Observable<Row> getAllChildrenPaths(String tenantId, String feedId, BigDecimal low, BigDecimal high) {
-        return lazyRows(getAllChildrenPaths.bind(tenantId, feedId, low, high));
+    public BoundStatement bindDeleteAllOutRelationships(String sourceCp) {
+        return deleteAllOutRelationships.bind(sourceCp);
     }
 
-    public Observable<Row> getAllChildren(String tenantId, String feedId, BigDecimal low, BigDecimal high) {
-        return lazyRows(getAllChildren.bind(tenantId, feedId, low, high));
+    public BoundStatement bindDeleteAllInRelationships(String targetCp) {
+        return deleteAllInRelationships.bind(targetCp);
+    }
+
+    /**
+     * Reads the paths of all the entities of given type that are descendants of the entity with the provided path.
+     * Because the entity tree is clustered by the entity type and path, this is a slice of a single partition.
+     */
+    public Observable<Row> getDescendantPathsOfType(String tenantId, String feedId, String entityType,
+                                                    String entityPath) {
+        return lazyRows(getDescendantPathsOfType.bind(tenantId, feedId, entityType, descendantsLowerBound(entityPath),
+                descendantsUpperBound(entityPath)));
+    }
+
+    /**
+     * Same as {@link #getDescendantPathsOfType(String, String, String, String)} but reads the whole rows.
+     */
+    public Observable<Row> getDescendantsOfType(String tenantId, String feedId, String entityType,
+                                                String entityPath) {
+        return lazyRows(getDescendantsOfType.bind(tenantId, feedId, entityType, descendantsLowerBound(entityPath),
+                descendantsUpperBound(entityPath)));
+    }
+
+    /**
+     * Reads a single page of the direct children of given type of the entity with the provided path. Only the rows
+     * of the page are fetched, the rest of the results can be read by passing the paging state of the returned result
+     * set to the next call.
+     *
+     * @param pagingState the paging state of the previous page or null to read the first page
+     * @throws IllegalArgumentException if the paging state is not valid
+     */
+    public Observable<ResultSet> getChildrenOfType(String tenantId, String feedId, String entityType,
+                                                   String parentPath, int childDepth, int pageSize,
+                                                   String pagingState) {
+        BoundStatement st = getChildrenOfType.bind(tenantId, feedId, entityType, descendantsLowerBound(parentPath),
+                descendantsUpperBound(parentPath), childDepth);
+        st.setFetchSize(pageSize);
+        if (pagingState != null) {
+            try {
+                st.setPagingState(PagingState.fromString(pagingState));
+            } catch (PagingStateException e) {
+                throw new IllegalArgumentException("Invalid page token: " + pagingState, e);
+            }
+        }
+
+        return lazyResultSet(st);
+    }
+
+    public Observable<Row> getChildTreePathsOfType(String tenantId, String feedId, String entityType,
+                                                   String parentPath, int childDepth) {
+        return lazyRows(getChildTreePathsOfType.bind(tenantId, feedId, entityType, descendantsLowerBound(parentPath),
+                descendantsUpperBound(parentPath), childDepth));
+    }
+
+    /**
+     * Deletes all the entities of given type that are descendants of the entity with the provided path using a single
+     * range tombstone.
+     */
+    public BoundStatement bindDeleteDescendantsOfType(String tenantId, String feedId, String entityType,
+                                                      String entityPath) {
+        return deleteEntityRange.bind(tenantId, feedId, entityType, descendantsLowerBound(entityPath),
+                descendantsUpperBound(entityPath));
     }
 
     public Observable<Row> updateIfExists(String tenantId, String feedId, String entityType, String entityPath,
@@ -194,6 +569,179 @@ final class Statements {
         return lazyRows(updateEntityIfExists.bind(name, properties, tenantId, feedId, entityType, entityPath));
     }
 
+    /**
+     * Executes the provided statements in UNLOGGED batches. Only the statements modifying the same partition are put
+     * into the same batch so that each batch is handled by a single coordinator and replica set, and no batch is
+     * larger than the configured maximum batch size. The batches that don't fill up are sent after a short delay
+     * rather than after all the statements are prepared.
+     *
+     * <p>At most the configured maximum number of requests is in flight at any given time. The statements are only
+     * requested from the provided observable as the previous batches complete.
+     *
+     * <p>The statements are expected to be idempotent, because a failed batch might have been partially applied.
+     *
+     * @param statements the statements to execute
+     * @return an observable emitting each of the statements once the batch it was part of was executed
+     */
+    public Observable<Statement> executeInBatches(Observable<? extends Statement> statements) {
+        return executeInBatches(statements, (batch, execution) -> execution.flatMap(rs -> Observable.from(batch)));
+    }
+
+    /**
+     * Same as {@link #executeInBatches(Observable)} but the failure of a batch doesn't stop the execution of the
+     * rest of the statements.
+     *
+     * @param statements the statements to execute
+     * @return an observable emitting each of the statements along with the error that failed the batch it was part of
+     * or null if the batch succeeded
+     */
+    public Observable<Map.Entry<Statement, Throwable>> tryExecuteInBatches(Observable<? extends Statement> statements) {
+        return executeInBatches(statements, (batch, execution) -> execution
+                .flatMap(rs -> Observable.from(batch).map(st -> outcome(st, null)))
+                .onErrorResumeNext(e -> Observable.from(batch).map(st -> outcome(st, e))));
+    }
+
+    private <R> Observable<R> executeInBatches(Observable<? extends Statement> statements,
+                                               Func2<List<Statement>, Observable<ResultSet>, Observable<R>> handler) {
+        ProtocolVersion protocolVersion = cassSession.getCluster().getConfiguration().getProtocolOptions()
+                .getProtocolVersion();
+        CodecRegistry codecRegistry = cassSession.getCluster().getConfiguration().getCodecRegistry();
+
+        AtomicInteger queued = new AtomicInteger();
+
+        //the ticks flush the partial batches, so that they don't wait for the rest of the statements. They are
+        //dropped while all the allowed requests are in flight and stop with the statements.
+        Observable<Object> statementsAndFlushes = statements.<Object>map(st -> st).doOnNext(st -> {
+            queued.incrementAndGet();
+            queuedStatements.incrementAndGet();
+        }).publish(sts -> sts.mergeWith(Observable.interval(BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS)
+                .onBackpressureDrop()
+                .<Object>map(any -> FLUSH)
+                .takeUntil(sts.ignoreElements().concatWith(Observable.just(FLUSH)))))
+                .concatWith(Observable.just(FLUSH));
+
+        return Observable.defer(() -> {
+            //only the statements modifying the same partition are batched together
+            Map<Object, List<Statement>> partialBatches = new LinkedHashMap<>();
+
+            return statementsAndFlushes.flatMapIterable(item -> {
+                if (item == FLUSH) {
+                    List<List<Statement>> batches = new ArrayList<>(partialBatches.values());
+                    partialBatches.clear();
+                    return batches;
+                }
+
+                Statement st = (Statement) item;
+                ByteBuffer routingKey = st.getRoutingKey(protocolVersion, codecRegistry);
+                //we can't tell the partition, so let's not batch this statement with any other
+                Object partition = routingKey == null ? st : routingKey;
+
+                List<Statement> batch = partialBatches.computeIfAbsent(partition,
+                        any -> new ArrayList<>(maxBatchSize));
+                batch.add(st);
+                if (batch.size() < maxBatchSize) {
+                    return Collections.emptyList();
+                }
+
+                partialBatches.remove(partition);
+                return Collections.singletonList(batch);
+            });
+        }).flatMap(batch -> handler.call(batch, Observable.defer(() -> {
+            queued.addAndGet(-batch.size());
+            queuedStatements.addAndGet(-batch.size());
+            peakInFlightRequests.accumulateAndGet(inFlightRequests.incrementAndGet(), Math::max);
+
+            Statement st;
+            if (batch.size() == 1) {
+                st = batch.get(0);
+            } else {
+                st = new BatchStatement(BatchStatement.Type.UNLOGGED).addAll(batch).setIdempotent(true);
+            }
+
+            return session.execute(st).doOnUnsubscribe(inFlightRequests::decrementAndGet);
+        })), maxInFlightRequests)
+                //don't leave the statements we never got to in the counter if we fail or are cancelled
+                .doOnUnsubscribe(() -> queuedStatements.addAndGet(-queued.getAndSet(0)));
+    }
+
+    private static Map.Entry<Statement, Throwable> outcome(Statement statement, Throwable error) {
+        return new AbstractMap.SimpleImmutableEntry<>(statement, error);
+    }
+
+    /**
+     * Executes the statements in a single LOGGED batch, so that either all of them or none of them are eventually
+     * applied.
+     */
+    public Observable<Void> executeLoggedBatch(Statement... statements) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.LOGGED);
+        for (Statement st : statements) {
+            batch.add(st);
+        }
+
+        return Observable.just(1).flatMap(one -> session.execute(batch)).map(rs -> null);
+    }
+
+    /**
+     * Executes the conditional statements, all of which must target the same partition, in batches of at most the
+     * maximum batch size, one after another. Each batch is applied atomically and in isolation but only if the
+     * conditions of all its statements are met. No more batches are executed after one that was not applied.
+     *
+     * @return whether all the batches were applied or not
+     */
+    public Observable<Boolean> executeConditionalBatches(List<? extends Statement> statements) {
+        int batches = (statements.size() + maxBatchSize - 1) / maxBatchSize;
+
+        return Observable.range(0, batches)
+                .map(i -> statements.subList(i * maxBatchSize, Math.min(statements.size(), (i + 1) * maxBatchSize)))
+                .concatMap(this::executeConditionalBatch)
+                .all(applied -> applied);
+    }
+
+    private Observable<Boolean> executeConditionalBatch(List<? extends Statement> statements) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.LOGGED);
+        batch.addAll(statements);
+
+        return Observable.just(1).flatMap(one -> session.execute(batch)).map(ResultSet::wasApplied);
+    }
+
+    /**
+     * @return the number of requests sent to Cassandra by {@link #executeInBatches(Observable)} that haven't
+     * completed yet
+     */
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    /**
+     * @return the highest number of requests sent to Cassandra by {@link #executeInBatches(Observable)} that were in
+     * flight at the same time
+     */
+    public int getPeakInFlightRequests() {
+        return peakInFlightRequests.get();
+    }
+
+    /**
+     * @return the number of statements passed to {@link #executeInBatches(Observable)} that are waiting to be sent
+     * to Cassandra
+     */
+    public int getQueuedStatements() {
+        return queuedStatements.get();
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    //all the descendant paths start with the path of the entity followed by '/' and '0' is the character right after
+    //'/'. The entity path itself is therefore outside of the range.
+    private static String descendantsLowerBound(String entityPath) {
+        return entityPath + CanonicalPath.PATH_DELIM;
+    }
+
+    private static String descendantsUpperBound(String entityPath) {
+        return entityPath + (char) (CanonicalPath.PATH_DELIM + 1);
+    }
+
     private Observable<Row> lazyRows(BoundStatement st) {
         return Observable.just(1).flatMap(one -> session.executeAndFetch(st));
     }
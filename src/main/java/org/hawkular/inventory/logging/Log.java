@@ -71,4 +71,70 @@ public interface Log extends BasicLogger {
     @LogMessage(level = Logger.Level.WARN)
     @Message(id = 9, value = "Failed to auto-create tenant '%s'. Subsequent requests will probably fail.")
     void warnFailedToAutocreateTenant(String tenant, @Cause Throwable cause);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 10, value = "Invalid max batch size specified in the configuration: %s. Using %s.")
+    void warnInvalidMaxBatchSize(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 11, value = "Invalid max in-flight requests specified in the configuration: %s. Using %s.")
+    void warnInvalidMaxInFlightRequests(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 13, value = "Invalid re-encoding interval specified in the configuration: %s. Using the default %s.")
+    void warnInvalidReencodingInterval(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.INFO)
+    @Message(id = 14, value = "Re-encoded the tree positions of %d entities in the partition of tenant '%s' and" +
+            " feed '%s'.")
+    void infoPartitionReencoded(int count, String tenantId, String feedId);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 15, value = "Failed to re-encode the tree positions in the partition of tenant '%s' and feed '%s'.")
+    void warnReencodingFailed(String tenantId, String feedId, @Cause Throwable cause);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 16, value = "Failed to re-encode the partitions queued for re-encoding.")
+    void warnReencodingScanFailed(@Cause Throwable cause);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 17, value = "Invalid number of feed buckets specified in the configuration: %s." +
+            " Using the default %s.")
+    void warnInvalidFeedBuckets(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 18, value = "Invalid entity cache capacity specified in the configuration: %s." +
+            " Using the default %s.")
+    void warnInvalidEntityCacheCapacity(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 19, value = "Invalid missing entity TTL specified in the configuration: %s. Using the default %s.")
+    void warnInvalidMissingEntityTtl(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 20, value = "Invalid child index lease size specified in the configuration: %s." +
+            " Using the default %s.")
+    void warnInvalidChildIndexLeaseSize(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 21, value = "Failed to recycle the indices %s of the children of %s. They will not be used again.")
+    void warnChildIndicesNotRecycled(String indices, String parentPath, @Cause Throwable cause);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 22, value = "Invalid maximum page size specified in the configuration: %s. Using the default %s.")
+    void warnInvalidMaxPageSize(String found, String defaultValue, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 23, value = "Failed to give back the unused child indices leased to this node. They will not be" +
+            " used again.")
+    void warnChildIndicesNotReleased(@Cause Throwable cause);
+
+    @LogMessage(level = Logger.Level.INFO)
+    @Message(id = 24, value = "Registered %d feeds stored before the feed table was introduced.")
+    void infoFeedsRegistered(int count);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 25, value = "Failed to load the existing tenants. They will be upserted again on their first" +
+            " request.")
+    void warnFailedToLoadTenants(@Cause Throwable cause);
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A single page of results of a query.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public final class Page<T> {
+    private final List<T> items;
+    private final String nextPageToken;
+
+    @JsonCreator
+    public Page(@JsonProperty("items") List<T> items, @JsonProperty("nextPageToken") String nextPageToken) {
+        this.items = items;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * @return the items on this page
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the opaque token to pass to the query to get the next page or null if this is the last page
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Page)) return false;
+
+        Page<?> page = (Page<?>) o;
+
+        if (!items.equals(page.items)) return false;
+        return nextPageToken != null ? nextPageToken.equals(page.nextPageToken) : page.nextPageToken == null;
+    }
+
+    @Override public int hashCode() {
+        int result = items.hashCode();
+        result = 31 * result + (nextPageToken != null ? nextPageToken.hashCode() : 0);
+        return result;
+    }
+
+    @Override public String toString() {
+        return "Page[items=" + items + ", nextPageToken=" + nextPageToken + ']';
+    }
+}
@@ -21,12 +21,14 @@ import java.util.Map;
 import org.hawkular.inventory.paths.CanonicalPath;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
  * @author Lukas Krejci
  * @since 2.0.0
  */
+@JsonIgnoreProperties(value = "path", allowGetters = true)
 public final class Relationship {
     private final CanonicalPath cp;
     private final CanonicalPath source;
@@ -50,8 +52,9 @@ public final class Relationship {
         return new Relationship(source, target, name, properties);
     }
 
-    public Relationship(CanonicalPath source, CanonicalPath target, String name,
-                        Map<String, String> properties) {
+    @JsonCreator
+    public Relationship(@JsonProperty("source") CanonicalPath source, @JsonProperty("target") CanonicalPath target,
+                        @JsonProperty("name") String name, @JsonProperty("properties") Map<String, String> properties) {
         String id = componentsToId(source, target, name);
         this.cp = CanonicalPath.of().relationship(id).get();
         this.source = source;
@@ -42,7 +42,7 @@ public final class SyncConfiguration {
     @JsonCreator
     public SyncConfiguration(@JsonProperty("syncedTypes") EnumSet<SegmentType> syncedTypes,
                              @JsonProperty(value = "deepSearch", defaultValue = "false") boolean deepSearch) {
-        this.syncedTypes = syncedTypes;
+        this.syncedTypes = syncedTypes == null ? EnumSet.allOf(SegmentType.class) : syncedTypes;
         this.deepSearch = deepSearch;
     }
 
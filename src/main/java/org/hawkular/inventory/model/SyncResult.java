@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Summarizes what a sync actually did to the inventory.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public final class SyncResult {
+    private final int added;
+    private final int updated;
+    private final int deleted;
+    private final int unchanged;
+
+    @JsonCreator
+    public SyncResult(@JsonProperty("added") int added, @JsonProperty("updated") int updated,
+                      @JsonProperty("deleted") int deleted, @JsonProperty("unchanged") int unchanged) {
+        this.added = added;
+        this.updated = updated;
+        this.deleted = deleted;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * @return the number of entities from the synced structure that did not exist before the sync
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the number of pre-existing entities whose name or properties were changed by the sync
+     */
+    public int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return the number of entities removed from the inventory because they were not part of the synced structure
+     */
+    public int getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return the number of entities from the synced structure that were already stored exactly as sent
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SyncResult)) return false;
+
+        SyncResult that = (SyncResult) o;
+
+        return added == that.added && updated == that.updated && deleted == that.deleted
+                && unchanged == that.unchanged;
+    }
+
+    @Override public int hashCode() {
+        int result = added;
+        result = 31 * result + updated;
+        result = 31 * result + deleted;
+        result = 31 * result + unchanged;
+        return result;
+    }
+
+    @Override public String toString() {
+        final StringBuilder sb = new StringBuilder("SyncResult[");
+        sb.append("added=").append(added);
+        sb.append(", updated=").append(updated);
+        sb.append(", deleted=").append(deleted);
+        sb.append(", unchanged=").append(unchanged);
+        sb.append(']');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.rest;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.backend.InventoryStorage;
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.jboss.resteasy.annotations.GZIP;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@GZIP
+@Path("/ancestors")
+@Consumes("application/json")
+@Produces("application/json")
+public class AncestorsEndpoint {
+
+    private static final int PATH_PREFIX_LENGTH = "/ancestors".length();
+
+    @Inject @Configured
+    private InventoryStorage storage;
+
+    @Inject
+    private HttpServletRequest request;
+
+    /**
+     * Lists the ancestors of the entity, starting with the tenant and ending with the parent of the entity.
+     */
+    @GET
+    @Path("{path:.+}")
+    public void getAncestors(@Suspended AsyncResponse response, @Context UriInfo uriInfo) {
+        CanonicalPath cp = Util.getPath(uriInfo, request, PATH_PREFIX_LENGTH, 0);
+        storage.findAncestors(cp).subscribe(new Util.ListEmitter<>(response, ancestors -> Response.ok(ancestors)
+                .build()));
+    }
+}
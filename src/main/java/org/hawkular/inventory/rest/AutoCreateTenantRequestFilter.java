@@ -18,19 +18,23 @@ package org.hawkular.inventory.rest;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
-import javax.ws.rs.container.ContainerRequestContext;
-import javax.ws.rs.container.ContainerRequestFilter;
-import javax.ws.rs.container.PreMatching;
-import javax.ws.rs.core.Response;
-import javax.ws.rs.ext.Provider;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.hawkular.inventory.annotations.Configured;
 import org.hawkular.inventory.backend.InventoryStorage;
@@ -38,80 +42,109 @@ import org.hawkular.inventory.logging.Log;
 import org.hawkular.inventory.model.Entity;
 import org.hawkular.inventory.paths.CanonicalPath;
 
-import rx.Subscriber;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import rx.Observable;
 
 /**
+ * Makes sure the tenant of the request exists before the request is processed.
+ *
+ * <p>This is a servlet filter rather than a JAX-RS one, so that the request can be suspended while the tenant is being
+ * created instead of blocking the request thread. Once the tenant exists, the request is dispatched again and passes
+ * through. The concurrent requests of a new tenant all wait for the same creation of the tenant.
+ *
  * @author Lukas Krejci
  * @since 2.0.0
  */
-@Provider
-@PreMatching
-public class AutoCreateTenantRequestFilter implements ContainerRequestFilter {
+@WebFilter(urlPatterns = "/*", asyncSupported = true,
+        dispatcherTypes = {DispatcherType.REQUEST, DispatcherType.ASYNC})
+public class AutoCreateTenantRequestFilter implements Filter {
     /* URI chunks to which this filter should not be applied */
     private static final List<Pattern> URI_EXCEPTION_PATTERNS = Stream.of(".*/inventory/status/?",
-            ".*/inventory/ping/?", ".*/inventory/?").map(Pattern::compile).collect(Collectors.toList());
+            ".*/inventory/ping/?", ".*/inventory/metrics(/.*)?", ".*/inventory/?").map(Pattern::compile)
+            .collect(Collectors.toList());
 
     static final String TENANT_HEADER_NAME = "Hawkular-Tenant";
 
-    private final Set<String> existingTenantIds = ConcurrentHashMap.newKeySet();
+    /**
+     * The request attribute marking the requests dispatched again after their tenant was created.
+     */
+    private static final String TENANT_CREATED_ATTRIBUTE = AutoCreateTenantRequestFilter.class.getName()
+            + ".tenantCreated";
+
+    /**
+     * The maximum number of the tenants known to exist. The tenants evicted from the cache are upserted again on
+     * their next request, which is harmless.
+     */
+    private static final long MAX_KNOWN_TENANTS = 10_000;
+
+    private final Cache<String, Boolean> existingTenantIds = Caffeine.newBuilder()
+            .maximumSize(MAX_KNOWN_TENANTS)
+            .build();
+
+    private final ConcurrentHashMap<String, Observable<Void>> tenantsBeingCreated = new ConcurrentHashMap<>();
 
     @Inject @Configured
     private InventoryStorage storage;
 
-    @Override public void filter(ContainerRequestContext requestContext) throws IOException {
-        boolean shouldSkip = shouldSkip(requestContext.getUriInfo().getRequestUri().getPath());
-        if (shouldSkip) {
+    @Override public void init(FilterConfig filterConfig) throws ServletException {
+        //the requests don't wait for this, they at worst upsert the tenant once more - as do the tenants without feeds
+        storage.findTenantIdsWithFeeds()
+                .take((int) MAX_KNOWN_TENANTS)
+                .subscribe(tenantId -> existingTenantIds.put(tenantId, Boolean.TRUE),
+                        Log.LOG::warnFailedToLoadTenants);
+    }
+
+    @Override public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String tenantId = httpRequest.getHeader(TENANT_HEADER_NAME);
+        if (tenantId == null || shouldSkip(httpRequest.getRequestURI())
+                || request.getAttribute(TENANT_CREATED_ATTRIBUTE) != null) {
+            chain.doFilter(request, response);
             return;
         }
 
-        String tenantId = requestContext.getHeaderString(TENANT_HEADER_NAME);
-        if (tenantId != null) {
-            if (!existingTenantIds.contains(tenantId)) {
-                Log.LOG.tracef("Tenant [%s] needs to be created", tenantId);
-
-                //we stop the request processing until the tenant is successfully created...
-                CountDownLatch waiter = new CountDownLatch(1);
-                Throwable[] failure = new Throwable[1];
-                storage.upsert(Entity.at(CanonicalPath.of().tenant(tenantId).get()).build())
-                        .subscribe(new Subscriber<Void>() {
-                            @Override
-                            public void onCompleted() {
-                                waiter.countDown();
-                            }
-
-                            @Override
-                            public void onError(Throwable t) {
-                                failure[0] = t;
-                                waiter.countDown();
-                                Log.LOG.warnFailedToAutocreateTenant(tenantId, t);
-                            }
-
-                            @Override
-                            public void onNext(Void ignored) {
-                                //do nothing
-                            }
-                        });
-
-                try {
-                    waiter.await();
-                } catch (InterruptedException e) {
-                    //reset the flag, but continue with the request processing. The container should react accordingly.
-                    Thread.currentThread().interrupt();
-                }
-
-                if (failure[0] != null) {
-                    requestContext.abortWith(
-                            Response.serverError().entity("Failed to auto-create tenant '" + tenantId
-                                    + "'. Error message: " + failure[0].getMessage()).build());
-                } else {
-                    existingTenantIds.add(tenantId);
-                }
-            } else {
-                Log.LOG.tracef("Tenant [%s] exists already", tenantId);
-            }
+        if (existingTenantIds.getIfPresent(tenantId) != null) {
+            Log.LOG.tracef("Tenant [%s] exists already", tenantId);
+            chain.doFilter(request, response);
+            return;
         }
+
+        Log.LOG.tracef("Tenant [%s] needs to be created", tenantId);
+
+        //we suspend the request processing until the tenant is successfully created...
+        AsyncContext asyncContext = request.startAsync();
+        ensureTenant(tenantId).subscribe(any -> {}, t -> {
+            try {
+                HttpServletResponse httpResponse = (HttpServletResponse) asyncContext.getResponse();
+                httpResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                httpResponse.getWriter().write("Failed to auto-create tenant '" + tenantId + "'. Error message: "
+                        + t.getMessage());
+            } catch (IOException e) {
+                Log.LOG.warn("Failed to send the response", e);
+            } finally {
+                asyncContext.complete();
+            }
+        }, () -> {
+            request.setAttribute(TENANT_CREATED_ATTRIBUTE, Boolean.TRUE);
+            asyncContext.dispatch();
+        });
     }
 
+    @Override public void destroy() {
+    }
+
+    private Observable<Void> ensureTenant(String tenantId) {
+        //the creation is cached, so that the concurrent requests of the same tenant all wait for the same upsert
+        return tenantsBeingCreated.computeIfAbsent(tenantId, id ->
+                storage.upsert(Entity.at(CanonicalPath.of().tenant(id).get()).build())
+                        .doOnCompleted(() -> existingTenantIds.put(id, Boolean.TRUE))
+                        .doOnError(t -> Log.LOG.warnFailedToAutocreateTenant(id, t))
+                        .doOnTerminate(() -> tenantsBeingCreated.remove(id))
+                        .cache());
+    }
 
     private boolean shouldSkip(String uri) {
         return URI_EXCEPTION_PATTERNS.stream().anyMatch((p -> p.matcher(uri).matches()));
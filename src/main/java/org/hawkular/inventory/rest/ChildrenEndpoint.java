@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.rest;
+
+import static org.hawkular.inventory.rest.Util.emitSingleResult;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.backend.InventoryStorage;
+import org.hawkular.inventory.logging.Log;
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.hawkular.inventory.paths.SegmentType;
+import org.jboss.resteasy.annotations.GZIP;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@GZIP
+@Path("/children")
+@Consumes("application/json")
+@Produces("application/json")
+public class ChildrenEndpoint {
+
+    private static final int PATH_PREFIX_LENGTH = "/children".length();
+    private static final int DEFAULT_MAX_PAGE_SIZE = 1000;
+
+    @Inject @Configured
+    private InventoryStorage storage;
+
+    @Inject @Configured
+    private Map<String, String> configuration;
+
+    @Inject
+    private HttpServletRequest request;
+
+    private int maxPageSize;
+
+    @PostConstruct
+    protected void init() {
+        String configured = Util.getConfigValue(configuration, "hawkular.inventory.max-page-size",
+                Collections.singletonList("hawkular.inventory.max-page-size"),
+                Collections.singletonList("HAWKULAR_INVENTORY_MAX_PAGE_SIZE"));
+
+        maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+        if (configured != null) {
+            try {
+                maxPageSize = Math.max(Integer.parseInt(configured), 1);
+            } catch (NumberFormatException e) {
+                Log.LOG.warnInvalidMaxPageSize(configured, Integer.toString(DEFAULT_MAX_PAGE_SIZE), e);
+            }
+        }
+    }
+
+    /**
+     * Lists the direct children of given type of the entity. The response contains a page of the children and the
+     * token to pass in the {@code pageToken} parameter to get the next page, if there is one. Page sizes above the
+     * configured maximum are reduced to the maximum.
+     */
+    @GET
+    @Path("{path:.+}")
+    public void getChildren(@Suspended AsyncResponse response, @Context UriInfo uriInfo,
+                            @QueryParam("type") String type, @QueryParam("pageSize") @DefaultValue("100") int pageSize,
+                            @QueryParam("pageToken") String pageToken) {
+        if (type == null) {
+            throw new IllegalArgumentException("The type of the children must be specified.");
+        }
+
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive.");
+        }
+
+        CanonicalPath cp = Util.getPath(uriInfo, request, PATH_PREFIX_LENGTH, 0);
+        SegmentType childType = Util.getSegmentTypeFromSimpleName(type);
+
+        storage.findChildren(cp, childType, Math.min(pageSize, maxPageSize), pageToken)
+                .subscribe(emitSingleResult(response, page -> Response.ok(page).build()));
+    }
+}
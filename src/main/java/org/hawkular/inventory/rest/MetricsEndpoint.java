@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.backend.InventoryStorage;
+
+/**
+ * Exposes the runtime statistics of this inventory node. These are not tied to any tenant.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@Path("/metrics")
+@Produces("application/json")
+public class MetricsEndpoint {
+
+    @Inject @Configured
+    private InventoryStorage storage;
+
+    @GET
+    @Path("/entity-cache")
+    public Response getEntityCacheMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        metrics.put("cacheHits", storage.getEntityCacheHits());
+        metrics.put("cacheMisses", storage.getEntityCacheMisses());
+        metrics.put("cacheSize", storage.getEntityCacheSize());
+        metrics.put("missingEntityCacheHits", storage.getMissingEntityCacheHits());
+
+        return Response.ok(metrics).build();
+    }
+
+    @GET
+    @Path("/sync")
+    public Response getSyncMetrics() {
+        Map<String, Integer> metrics = new HashMap<>();
+        metrics.put("inFlightRequests", storage.getInFlightSyncRequests());
+        metrics.put("peakInFlightRequests", storage.getPeakInFlightSyncRequests());
+        metrics.put("maxInFlightRequests", storage.getMaxInFlightSyncRequests());
+        metrics.put("queuedStatements", storage.getQueuedSyncStatements());
+
+        return Response.ok(metrics).build();
+    }
+}
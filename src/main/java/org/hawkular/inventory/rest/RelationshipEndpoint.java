@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.rest;
+
+import static org.hawkular.inventory.rest.Util.emitSingleResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Response;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.backend.InventoryStorage;
+import org.hawkular.inventory.model.Relationship;
+import org.jboss.resteasy.annotations.GZIP;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@GZIP
+@Path("/relationship")
+@Consumes("application/json")
+@Produces("application/json")
+public class RelationshipEndpoint {
+
+    @Inject @Configured
+    private InventoryStorage storage;
+
+    @Inject
+    private HttpServletRequest request;
+
+    /**
+     * Creates all the relationships in the payload. The response maps the canonical path of each of the
+     * relationships to the HTTP status code describing the outcome of its creation.
+     */
+    @POST
+    @Path("bulk")
+    public void bulkCreate(@Suspended AsyncResponse response, List<Relationship> relationships) {
+        if (relationships == null || relationships.contains(null)) {
+            throw new IllegalArgumentException("The list of the relationships to create must be supplied in the"
+                    + " payload and must not contain nulls.");
+        }
+
+        String tenantId = Util.getTenantId(request);
+
+        Map<String, Integer> statuses = new LinkedHashMap<>();
+        List<Relationship> valid = new ArrayList<>(relationships.size());
+        for (Relationship rel : relationships) {
+            if (tenantId != null && tenantId.equals(rel.getSource().ids().getTenantId())
+                    && tenantId.equals(rel.getTarget().ids().getTenantId())) {
+                valid.add(rel);
+                statuses.put(rel.getPath().toString(), null);
+            } else {
+                statuses.put(rel.getPath().toString(), Response.Status.BAD_REQUEST.getStatusCode());
+            }
+        }
+
+        storage.relateAll(valid).subscribe(emitSingleResult(response, failures -> {
+            for (Relationship rel : valid) {
+                statuses.put(rel.getPath().toString(), failures.containsKey(rel)
+                        ? Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()
+                        : Response.Status.CREATED.getStatusCode());
+            }
+
+            return Response.ok(statuses).build();
+        }));
+    }
+}
@@ -22,6 +22,7 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -29,6 +30,7 @@ import java.util.Random;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Disposes;
 import javax.enterprise.inject.Produces;
 
 import org.hawkular.inventory.annotations.Configured;
@@ -44,8 +46,14 @@ public class SupportDataProducer {
     private static final String EXTERNAL_CONF_FILE_PROPERTY_NAME = "hawkular-inventory.conf";
 
     private static Map<String, String> getConfiguration() throws IOException {
-        Map<String, String> config = getDefaultConfiguration();
+        return getStorageConfiguration(getDefaultConfiguration());
+    }
 
+    /**
+     * Translates the configuration properties to the configuration of the {@link InventoryStorage}. The system
+     * properties and the environment variables take precedence over the provided properties.
+     */
+    public static Map<String, String> getStorageConfiguration(Map<String, String> config) {
         Map<String, String> ret = new HashMap<>();
         ret.put("nodes", Util.getConfigValue(config, "hawkular.inventory.cassandra.nodes",
                 Arrays.asList("hawkular.inventory.cassandra.nodes", "hawkular.metrics.cassandra.nodes"),
@@ -92,6 +100,46 @@ public class SupportDataProducer {
                         "hawkular.metrics.cassandra.page-size"),
                 Arrays.asList("HAWKULAR_INVENTORY_CASSANDRA_PAGE_SIZE", "PAGE_SIZE")));
 
+        ret.put("max-batch-size", Util.getConfigValue(config, "hawkular.inventory.cassandra.max-batch-size",
+                Collections.singletonList("hawkular.inventory.cassandra.max-batch-size"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_MAX_BATCH_SIZE")));
+
+        ret.put("max-in-flight-requests", Util.getConfigValue(config,
+                "hawkular.inventory.cassandra.max-in-flight-requests",
+                Collections.singletonList("hawkular.inventory.cassandra.max-in-flight-requests"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_MAX_IN_FLIGHT_REQUESTS")));
+
+        ret.put("use-lwt", Util.getConfigValue(config, "hawkular.inventory.cassandra.use-lwt",
+                Collections.singletonList("hawkular.inventory.cassandra.use-lwt"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_USE_LWT")));
+
+        ret.put("logged-relationship-writes", Util.getConfigValue(config,
+                "hawkular.inventory.cassandra.logged-relationship-writes",
+                Collections.singletonList("hawkular.inventory.cassandra.logged-relationship-writes"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_LOGGED_RELATIONSHIP_WRITES")));
+
+        ret.put("reencoding-interval", Util.getConfigValue(config, "hawkular.inventory.cassandra.reencoding-interval",
+                Collections.singletonList("hawkular.inventory.cassandra.reencoding-interval"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_REENCODING_INTERVAL")));
+
+        ret.put("feed-buckets", Util.getConfigValue(config, "hawkular.inventory.cassandra.feed-buckets",
+                Collections.singletonList("hawkular.inventory.cassandra.feed-buckets"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_FEED_BUCKETS")));
+
+        ret.put("entity-cache-capacity", Util.getConfigValue(config,
+                "hawkular.inventory.cassandra.entity-cache-capacity",
+                Collections.singletonList("hawkular.inventory.cassandra.entity-cache-capacity"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_ENTITY_CACHE_CAPACITY")));
+
+        ret.put("missing-entity-ttl", Util.getConfigValue(config, "hawkular.inventory.cassandra.missing-entity-ttl",
+                Collections.singletonList("hawkular.inventory.cassandra.missing-entity-ttl"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_MISSING_ENTITY_TTL")));
+
+        ret.put("child-index-lease-size", Util.getConfigValue(config,
+                "hawkular.inventory.cassandra.child-index-lease-size",
+                Collections.singletonList("hawkular.inventory.cassandra.child-index-lease-size"),
+                Collections.singletonList("HAWKULAR_INVENTORY_CASSANDRA_CHILD_INDEX_LEASE_SIZE")));
+
         ret = ret.entrySet().stream().filter(e -> e.getValue() != null)
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 
@@ -165,4 +213,14 @@ public class SupportDataProducer {
             }
         }
     }
+
+    public void disposeInventoryStorage(@Disposes @Configured InventoryStorage storage) {
+        //otherwise the indices leased to this node would never be used again
+        try {
+            storage.releaseChildIndices().toBlocking().lastOrDefault(null);
+        } catch (Exception e) {
+            Log.LOG.warnChildIndicesNotReleased(e);
+        }
+        storage.close();
+    }
 }
@@ -73,6 +73,6 @@ public class SyncEndpoint {
 
         SyncRequest request = mapper.readValue(input, SyncRequest.class);
 
-        inventory.sync(root, request).subscribe(Util.emitSingleResult(response, any -> Response.noContent().build()));
+        inventory.sync(root, request).subscribe(Util.emitSingleResult(response, result -> Response.ok(result).build()));
     }
 }
@@ -104,3 +104,69 @@ CREATE TABLE relationship_in (
 ) WITH compaction = {'class': 'LeveledCompactionStrategy'}
 """])
 }
+
+schemaChange {
+    version '2.0.0.4'
+    author 'Lukas Krejci'
+    tags '2.0.0'
+    description 'Subtrees are read using slices over the entity path, so the tree interval indices are no longer' +
+            ' needed.'
+    cql (["""
+DROP INDEX IF EXISTS entityTree_low
+""", """
+DROP INDEX IF EXISTS entityTree_high
+"""])
+}
+
+schemaChange {
+    version '2.0.0.5'
+    author 'Lukas Krejci'
+    tags '2.0.0'
+    description 'Store the number of buckets the entities of a feed are spread over with the feed.'
+    cql """
+ALTER TABLE entityTree ADD buckets int
+"""
+}
+
+schemaChange {
+    version '2.0.0.6'
+    author 'Lukas Krejci'
+    tags '2.0.0'
+    description 'Add the tables used to lease the indices of the children of entities to the inventory nodes.'
+    cql (["""
+CREATE TABLE childIndexLease (
+    parentPath text,
+    nextUnused int,
+
+    PRIMARY KEY (parentPath)
+) WITH compaction = {'class': 'LeveledCompactionStrategy'}
+""", """
+CREATE TABLE recycledChildIndices (
+    parentPath text,
+    fromIndex int,
+    toIndex int,
+
+    PRIMARY KEY (parentPath, fromIndex)
+) WITH compaction = {'class': 'LeveledCompactionStrategy'}
+"""])
+}
+
+schemaChange {
+    version '2.0.0.7'
+    author 'Lukas Krejci'
+    tags '2.0.0'
+    description 'Add the table of the feeds of each tenant with the number of buckets their entities are spread' +
+            ' over and the partition key of the feed in the entity tree. The feeds stored before are registered in' +
+            ' it by a one-time backfill when the inventory starts, keeping their unescaped feed IDs as their' +
+            ' partition keys.'
+    cql """
+CREATE TABLE feed (
+    tenantId text,
+    feedId text,
+    buckets int,
+    partitionKey text,
+
+    PRIMARY KEY (tenantId, feedId)
+) WITH compaction = {'class': 'LeveledCompactionStrategy'}
+"""
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.hawkular.inventory.test.Deployments;
+import org.hawkular.inventory.test.TestCassandra;
+import org.hawkular.rx.cassandra.driver.RxSessionImpl;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.datastax.driver.core.Session;
+
+import rx.Observable;
+
+/**
+ * Simulates several inventory nodes by leasing the child indices through several caches against the same Cassandra.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@RunWith(Arquillian.class)
+public class ChildIndexLeasesTest {
+
+    //makes sure the schema is in place
+    @Inject @Configured
+    private InventoryStorage storage;
+
+    @Inject @Configured
+    private Map<String, String> configuration;
+
+    private Session session;
+    private Statements statements;
+
+    @Deployment
+    public static WebArchive getDeployment() {
+        return Deployments.getFullHawkularInventoryWar();
+    }
+
+    @Before
+    public void connect() {
+        session = TestCassandra.connect(configuration);
+        statements = new Statements(new RxSessionImpl(session), session, 50, 64);
+    }
+
+    @After
+    public void disconnect() {
+        session.getCluster().close();
+    }
+
+    @Test
+    public void testNodesNeverShareIndices() throws Exception {
+        CanonicalPath parent = CanonicalPath.of().tenant(UUID.randomUUID().toString()).get();
+        int blockSize = 3;
+        ChildrenCountCache node1 = newNode(blockSize);
+        ChildrenCountCache node2 = newNode(blockSize);
+        int threads = 4;
+        int perThread = 50;
+
+        Set<Integer> slots = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                ChildrenCountCache node = t % 2 == 0 ? node1 : node2;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; ++i) {
+                        Assert.assertTrue(slots.add(node.allocateSlot(parent).toBlocking().single()));
+                    }
+                }));
+            }
+
+            for (Future<?> f : results) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(threads * perThread, slots.size());
+        //at most the last block of each node can be partially unused
+        Assert.assertTrue(slots.stream().allMatch(s -> s > 0 && s <= threads * perThread + 2 * blockSize));
+    }
+
+    @Test
+    public void testUnusedIndicesRecycled() throws Exception {
+        CanonicalPath parent = CanonicalPath.of().tenant(UUID.randomUUID().toString()).get();
+        ChildrenCountCache node1 = newNode(10);
+        ChildrenCountCache node2 = newNode(10);
+
+        Assert.assertEquals(1, (int) node1.allocateSlot(parent).toBlocking().single());
+
+        node1.releaseAll().toBlocking().lastOrDefault(null);
+
+        //the indices node1 didn't use are taken before the new ones
+        Assert.assertEquals(2, (int) node2.allocateSlot(parent).toBlocking().single());
+        Assert.assertEquals(3, (int) node2.allocateSlot(parent).toBlocking().single());
+        Assert.assertEquals(11, (int) newNode(10).allocateSlot(parent).toBlocking().single());
+    }
+
+    private ChildrenCountCache newNode(int blockSize) {
+        return new ChildrenCountCache(p -> Observable.empty(), new ChildIndexLeases(statements, blockSize));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.hawkular.inventory.paths.SegmentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rx.Observable;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public class ChildrenCountCacheTest {
+
+    @Test
+    public void testConcurrentAllocationsUnique() throws Exception {
+        ChildrenCountCache cache = new ChildrenCountCache(p -> Observable.empty());
+        CanonicalPath parent = CanonicalPath.of().tenant("t").feed("f").get();
+        int threads = 8;
+        int perThread = 1_000;
+
+        Set<Integer> slots = ConcurrentHashMap.newKeySet();
+        run(threads, t -> {
+            for (int i = 0; i < perThread; ++i) {
+                Assert.assertTrue(slots.add(cache.allocateSlot(parent).toBlocking().single()));
+            }
+            return 0;
+        });
+
+        Assert.assertEquals(threads * perThread, slots.size());
+        Assert.assertEquals(threads * perThread + 1, (int) cache.allocateSlot(parent).toBlocking().single());
+    }
+
+    @Test
+    public void testFreedSlotsReused() throws Exception {
+        ChildrenCountCache cache = new ChildrenCountCache(p -> Observable.empty());
+        CanonicalPath parent = CanonicalPath.of().tenant("t").feed("f").get();
+
+        for (int i = 0; i < 3; ++i) {
+            cache.allocateSlot(parent).toBlocking().single();
+        }
+
+        cache.removeSubtree(parent.modified().extend(SegmentType.r, "r2").get(), 2);
+        Assert.assertEquals(2, (int) cache.allocateSlot(parent).toBlocking().single());
+        Assert.assertEquals(4, (int) cache.allocateSlot(parent).toBlocking().single());
+    }
+
+    @Test
+    public void testSlotsLoadedOnFirstUse() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        ChildrenCountCache cache = new ChildrenCountCache(p -> Observable.just(1, 3)
+                .doOnSubscribe(loads::incrementAndGet));
+        CanonicalPath parent = CanonicalPath.of().tenant("t").feed("f").get();
+
+        Assert.assertEquals(0, loads.get());
+        Assert.assertEquals(2, (int) cache.allocateSlot(parent).toBlocking().single());
+        Assert.assertEquals(4, (int) cache.allocateSlot(parent).toBlocking().single());
+        Assert.assertEquals(1, loads.get());
+
+        //a new entity doesn't have any children to load
+        CanonicalPath child = parent.modified().extend(SegmentType.r, "r").get();
+        cache.created(child);
+        Assert.assertEquals(1, (int) cache.allocateSlot(child).toBlocking().single());
+        Assert.assertEquals(1, loads.get());
+    }
+
+    private static void run(int threads, ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>(threads);
+            for (int t = 0; t < threads; ++t) {
+                int thread = t;
+                results.add(executor.submit((Callable<Integer>) () -> task.run(thread)));
+            }
+            for (Future<Integer> f : results) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThreadTask {
+        int run(int thread) throws Exception;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rx.Observable;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public class FeedBucketsTest {
+
+    @Test
+    public void testUnbucketedFeedInSinglePartition() throws Exception {
+        FeedBuckets buckets = new FeedBuckets(1, f -> Observable.empty());
+        CanonicalPath feed = CanonicalPath.of().tenant("t").feed("f").get();
+
+        Assert.assertNull(buckets.assignBuckets(feed));
+        Assert.assertEquals("f", buckets.partitionOf(feed));
+        Assert.assertEquals("f", buckets.partitionOf(CanonicalPath.fromString("/t;t/f;f/r;r1/m;m1")));
+        Assert.assertEquals(1, buckets.descendantPartitionsOf(feed).size());
+        Assert.assertFalse(buckets.isBucketed(feed));
+    }
+
+    @Test
+    public void testSubtreesStayInOneBucket() throws Exception {
+        FeedBuckets buckets = new FeedBuckets(4, f -> Observable.empty());
+        CanonicalPath feed = CanonicalPath.of().tenant("t").feed("f").get();
+
+        Assert.assertEquals(4, (int) buckets.assignBuckets(feed));
+        Assert.assertTrue(buckets.isBucketed(feed));
+        Assert.assertEquals("f", buckets.partitionOf(feed));
+
+        List<String> partitions = buckets.descendantPartitionsOf(feed);
+        Assert.assertEquals(4, partitions.size());
+        Assert.assertEquals(4, new HashSet<>(partitions).size());
+
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < 20; ++i) {
+            CanonicalPath resource = CanonicalPath.fromString("/t;t/f;f/r;r" + i);
+            String partition = buckets.partitionOf(resource);
+            Assert.assertTrue(partitions.contains(partition));
+            Assert.assertEquals(partition, buckets.partitionOf(CanonicalPath.fromString(resource + "/m;m")));
+            used.add(partition);
+        }
+
+        Assert.assertTrue(used.size() > 1);
+    }
+
+    @Test
+    public void testFeedIdsEscaped() throws Exception {
+        FeedBuckets buckets = new FeedBuckets(2, f -> Observable.empty());
+        CanonicalPath x = CanonicalPath.of().tenant("t").feed("x").get();
+        CanonicalPath xBucket = CanonicalPath.of().tenant("t").feed("x<1>").get();
+        CanonicalPath tenantLike = CanonicalPath.of().tenant("t").feed("<TENANT>").get();
+        CanonicalPath backslash = CanonicalPath.of().tenant("t").feed("x\\").get();
+
+        buckets.assignBuckets(x);
+
+        Assert.assertFalse(buckets.descendantPartitionsOf(x).contains(buckets.partitionOf(xBucket)));
+        Assert.assertNotEquals(buckets.partitionOf(CanonicalPath.of().tenant("t").get()),
+                buckets.partitionOf(tenantLike));
+        Assert.assertNotEquals(FeedBuckets.partitionKey("x\\<1>"), FeedBuckets.partitionKey("x<1>"));
+
+        //the bucket 1 of the feed "x\" vs. the feed "x\<1>"
+        buckets.assignBuckets(backslash);
+        Assert.assertFalse(buckets.descendantPartitionsOf(backslash).contains(FeedBuckets.partitionKey("x\\<1>")));
+        Assert.assertEquals("x", FeedBuckets.partitionKey("x"));
+    }
+
+    @Test
+    public void testBucketsLoadedOnFirstUse() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        FeedBuckets buckets = new FeedBuckets(1, f -> Observable.just(new FeedBuckets.Partitioning(3, "f"))
+                .doOnSubscribe(loads::incrementAndGet));
+        CanonicalPath resource = CanonicalPath.fromString("/t;t/f;f/r;r1");
+
+        Assert.assertEquals(3, (int) buckets.load(resource).toBlocking().single());
+        Assert.assertEquals(3, (int) buckets.load(CanonicalPath.fromString("/t;t/f;f")).toBlocking().single());
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(3, buckets.descendantPartitionsOf(CanonicalPath.fromString("/t;t/f;f")).size());
+
+        //entities outside of feeds don't need any buckets
+        Assert.assertEquals(1, (int) buckets.load(CanonicalPath.of().tenant("t").get()).toBlocking().single());
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testUnescapedPartitionKeysOfExistingFeedsKept() throws Exception {
+        FeedBuckets buckets = new FeedBuckets(1, f -> Observable.just(new FeedBuckets.Partitioning(2, "x<1>")));
+        CanonicalPath feed = CanonicalPath.of().tenant("t").feed("x<1>").get();
+
+        buckets.load(feed).toBlocking().single();
+
+        Assert.assertEquals("x<1>", buckets.partitionOf(feed));
+        Assert.assertEquals(Arrays.asList("x<1>", "x<1><1>"), buckets.descendantPartitionsOf(feed));
+        Assert.assertEquals(Arrays.asList("x<1>", "x<1><1>"), new FeedBuckets.Partitioning(2, "x<1>").partitions());
+    }
+
+    @Test
+    public void testMissingFeedsNotRemembered() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        FeedBuckets buckets = new FeedBuckets(1, f -> Observable.<FeedBuckets.Partitioning>empty()
+                .doOnSubscribe(loads::incrementAndGet));
+        CanonicalPath feed = CanonicalPath.of().tenant("t").feed("f").get();
+
+        Assert.assertEquals(1, (int) buckets.load(feed).toBlocking().single());
+        Assert.assertEquals(1, (int) buckets.load(feed).toBlocking().single());
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testDeletedFeedsForgotten() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        FeedBuckets buckets = new FeedBuckets(1, f -> Observable.just(new FeedBuckets.Partitioning(2, "f"))
+                .doOnSubscribe(loads::incrementAndGet));
+        CanonicalPath feed = CanonicalPath.of().tenant("t").feed("f").get();
+
+        buckets.load(feed).toBlocking().single();
+        buckets.removeSubtree(feed);
+        buckets.load(feed).toBlocking().single();
+        Assert.assertEquals(2, loads.get());
+
+        buckets.removeSubtree(CanonicalPath.of().tenant("t").get());
+        Assert.assertFalse(buckets.isBucketed(feed));
+    }
+}
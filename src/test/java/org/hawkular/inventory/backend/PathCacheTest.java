@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public class PathCacheTest {
+
+    @Test
+    public void testParsedPathsInterned() throws Exception {
+        PathCache cache = new PathCache(10);
+        String path = "/t;t/f;f/r;r";
+
+        CanonicalPath cp = cache.parse(path);
+        Assert.assertEquals(CanonicalPath.fromString(path), cp);
+        Assert.assertSame(cp, cache.parse(new String(path)));
+    }
+
+    @Test
+    public void testRenderedPathsSameAsToString() throws Exception {
+        PathCache cache = new PathCache(10);
+        String path = "/t;t/f;f/r;r";
+
+        Assert.assertSame(path, cache.render(cache.parse(path)));
+
+        CanonicalPath built = CanonicalPath.of().tenant("t").feed("f").resource("r2").get();
+        Assert.assertEquals(built.toString(), cache.render(built));
+    }
+
+    @Test
+    public void testDisabledCacheStillParses() throws Exception {
+        PathCache cache = new PathCache(0);
+        String path = "/t;t/f;f/r;r";
+
+        Assert.assertEquals(CanonicalPath.fromString(path), cache.parse(path));
+        Assert.assertEquals(path, cache.render(cache.parse(path)));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.backend;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.test.Deployments;
+import org.hawkular.inventory.test.TestCassandra;
+import org.hawkular.rx.cassandra.driver.RxSessionImpl;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+import rx.Observable;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@RunWith(Arquillian.class)
+public class StatementsTest {
+
+    //makes sure the schema is in place
+    @Inject @Configured
+    private InventoryStorage storage;
+
+    @Inject @Configured
+    private Map<String, String> configuration;
+
+    private Session session;
+    private Statements statements;
+
+    @Deployment
+    public static WebArchive getDeployment() {
+        return Deployments.getFullHawkularInventoryWar();
+    }
+
+    @Before
+    public void connect() {
+        session = TestCassandra.connect(configuration);
+        statements = new Statements(new RxSessionImpl(session), session, 50, 64);
+    }
+
+    @After
+    public void disconnect() {
+        session.getCluster().close();
+    }
+
+    @Test
+    public void testPartialBatchesExecutedBeforeCompletion() throws Exception {
+        String tenantId = UUID.randomUUID().toString();
+
+        //a couple of statements for the same partition and a different one, none of which fills a batch
+        Observable<Statement> neverCompleting = Observable.<Statement>just(
+                statements.bindDeleteEntity(tenantId, "f", "r", "/t;" + tenantId + "/f;f/r;a"),
+                statements.bindDeleteEntity(tenantId, "f", "r", "/t;" + tenantId + "/f;f/r;b"),
+                statements.bindDeletePartition(tenantId, "g"))
+                .concatWith(Observable.never());
+
+        List<Statement> executed = statements.executeInBatches(neverCompleting)
+                .take(3)
+                .timeout(10, TimeUnit.SECONDS)
+                .toList().toBlocking().single();
+
+        Assert.assertEquals(3, executed.size());
+        Assert.assertEquals(0, statements.getQueuedStatements());
+    }
+
+    @Test
+    public void testFullBatchesExecuted() throws Exception {
+        String tenantId = UUID.randomUUID().toString();
+
+        Observable<Statement> deletes = Observable.range(0, 120).map(i ->
+                statements.bindDeleteEntity(tenantId, "f", "r", "/t;" + tenantId + "/f;f/r;" + i));
+
+        Assert.assertEquals(120, (int) statements.executeInBatches(deletes).count().toBlocking().single());
+        Assert.assertEquals(0, statements.getQueuedStatements());
+        Assert.assertEquals(0, statements.getInFlightRequests());
+    }
+}
@@ -16,10 +16,14 @@
  */
 package org.hawkular.inventory.test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 
 import javax.inject.Inject;
@@ -29,9 +33,13 @@ import org.hawkular.inventory.backend.InventoryStorage;
 import org.hawkular.inventory.logging.Log;
 import org.hawkular.inventory.model.Entity;
 import org.hawkular.inventory.model.InventoryStructure;
+import org.hawkular.inventory.model.Page;
 import org.hawkular.inventory.model.Relationship;
+import org.hawkular.inventory.model.SyncConfiguration;
 import org.hawkular.inventory.model.SyncRequest;
+import org.hawkular.inventory.model.SyncResult;
 import org.hawkular.inventory.paths.CanonicalPath;
+import org.hawkular.inventory.paths.SegmentType;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
@@ -42,6 +50,9 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+
 import rx.Observable;
 import rx.Observer;
 
@@ -55,6 +66,11 @@ public class BackendTest {
     @Inject @Configured
     private InventoryStorage storage;
 
+    private static InventoryStorage loggedRelationshipsStorage;
+
+    @Inject @Configured
+    private Map<String, String> configuration;
+
     @Deployment
     public static WebArchive getDeployment() {
         return Deployments.getFullHawkularInventoryWar();
@@ -77,6 +93,19 @@ public class BackendTest {
         Assert.assertEquals(1, count(res));
     }
 
+    @Test
+    public void testFindTenantIdsWithFeeds() throws Exception {
+        String withFeed = "with-feed-" + new Random().nextInt(Integer.MAX_VALUE);
+        String withoutFeed = "without-feed-" + new Random().nextInt(Integer.MAX_VALUE);
+        waitFor(storage.upsert(Entity.at(CanonicalPath.of().tenant(withFeed).get()).build()));
+        waitFor(storage.upsert(Entity.at(CanonicalPath.of().tenant(withFeed).feed("f").get()).build()));
+        waitFor(storage.upsert(Entity.at(CanonicalPath.of().tenant(withoutFeed).get()).build()));
+
+        List<String> tenantIds = storage.findTenantIdsWithFeeds().toList().toBlocking().single();
+        Assert.assertTrue(tenantIds.contains(withFeed));
+        Assert.assertFalse(tenantIds.contains(withoutFeed));
+    }
+
     @Test
     public void testSync() throws Exception {
         Entity fd = Entity.at("/t;t/f;fd").build();
@@ -133,7 +162,9 @@ public class BackendTest {
                 .addChild(mt1)
                 .build();
 
-        waitFor(storage.sync(fd.getPath(), SyncRequest.syncEverything(struct)));
+        SyncResult result = storage.sync(fd.getPath(), SyncRequest.syncEverything(struct)).toBlocking().single();
+
+        Assert.assertEquals(new SyncResult(0, 0, 3, 5), result);
 
         Assert.assertEquals(1, count(storage.findByPath(fd.getPath())));
         Assert.assertEquals(1, count(storage.findByPath(r1.getPath())));
@@ -145,6 +176,304 @@ public class BackendTest {
         Assert.assertEquals(1, count(storage.findByPath(mt1.getPath())));
     }
 
+    @Test
+    public void testResyncWritesOnlyChanges() throws Exception {
+        testSync();
+
+        Entity fd = Entity.at("/t;t/f;fd").build();
+        Entity r1 = Entity.at("/t;t/f;fd/r;r1").withName("renamed").build();
+        Entity m1 = Entity.at("/t;t/f;fd/r;r1/m;m1").build();
+        Entity r2 = Entity.at("/t;t/f;fd/r;r2").build();
+        Entity m2 = Entity.at("/t;t/f;fd/r;r2/m;m2").withProperty("a", "b").build();
+        Entity m3 = Entity.at("/t;t/f;fd/r;r2/m;m3").build();
+        Entity m4 = Entity.at("/t;t/f;fd/r;r2/m;m4").build();
+        Entity rt1 = Entity.at("/t;t/f;fd/rt;rt1").build();
+
+        InventoryStructure struct = InventoryStructure.of(fd)
+                .startChild(r1)
+                .addChild(m1)
+                .end()
+                .startChild(r2)
+                .addChild(m2)
+                .addChild(m3)
+                .addChild(m4)
+                .end()
+                .addChild(rt1)
+                .build();
+
+        SyncResult result = storage.sync(fd.getPath(), SyncRequest.syncEverything(struct)).toBlocking().single();
+
+        Assert.assertEquals(new SyncResult(1, 2, 1, 5), result);
+
+        Assert.assertEquals("renamed", storage.findByPath(r1.getPath()).toBlocking().single().getName());
+        Assert.assertEquals("b", storage.findByPath(m2.getPath()).toBlocking().single().getProperties().get("a"));
+        Assert.assertEquals(1, count(storage.findByPath(m4.getPath())));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/mt;mt1"))));
+    }
+
+    @Test
+    public void testShallowTypeRestrictedSync() throws Exception {
+        syncTypeRestricted(false);
+
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m1"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m2"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m3"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m4"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/m;m5"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/m;m6"))));
+    }
+
+    @Test
+    public void testDeepTypeRestrictedSync() throws Exception {
+        syncTypeRestricted(true);
+
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m1"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m2"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m3"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m4"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/m;m5"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/m;m6"))));
+    }
+
+    private void syncTypeRestricted(boolean deepSearch) {
+        Entity fd = Entity.at("/t;t/f;fd").build();
+        Entity r1 = Entity.at("/t;t/f;fd/r;r1").build();
+        Entity m1 = Entity.at("/t;t/f;fd/r;r1/m;m1").build();
+        Entity m2 = Entity.at("/t;t/f;fd/r;r1/m;m2").build();
+        Entity r2 = Entity.at("/t;t/f;fd/r;r2").build();
+        Entity m3 = Entity.at("/t;t/f;fd/r;r2/m;m3").build();
+        Entity m4 = Entity.at("/t;t/f;fd/r;r2/m;m4").build();
+        Entity m5 = Entity.at("/t;t/f;fd/m;m5").build();
+        Entity m6 = Entity.at("/t;t/f;fd/m;m6").build();
+
+        InventoryStructure full = InventoryStructure.of(fd)
+                .startChild(r1)
+                .addChild(m1)
+                .addChild(m2)
+                .end()
+                .startChild(r2)
+                .addChild(m3)
+                .addChild(m4)
+                .end()
+                .addChild(m5)
+                .addChild(m6)
+                .build();
+
+        storage.sync(fd.getPath(), SyncRequest.syncEverything(full)).toBlocking().single();
+
+        InventoryStructure partial = InventoryStructure.of(fd)
+                .startChild(r1)
+                .addChild(m1)
+                .end()
+                .addChild(m5)
+                .build();
+
+        SyncConfiguration onlyMetrics = SyncConfiguration.builder().withType(SegmentType.m)
+                .withDeepSearch(deepSearch).build();
+
+        SyncResult result = storage.sync(fd.getPath(), new SyncRequest(onlyMetrics, partial)).toBlocking().single();
+
+        Assert.assertEquals(deepSearch ? 4 : 2, result.getDeleted());
+        Assert.assertEquals(4, result.getUnchanged());
+    }
+
+    @Test
+    public void testSyncPipelineDrained() throws Exception {
+        testResync();
+
+        Assert.assertEquals(0, storage.getInFlightSyncRequests());
+        Assert.assertEquals(0, storage.getQueuedSyncStatements());
+        Assert.assertTrue(storage.getPeakInFlightSyncRequests() > 0);
+        Assert.assertTrue(storage.getPeakInFlightSyncRequests() <= storage.getMaxInFlightSyncRequests());
+    }
+
+    @Test
+    public void testSyncInFlightRequestsBounded() throws Exception {
+        //single statement batches, so that the sync needs many more requests than it is allowed to run at once
+        InventoryStorage bounded = createStorage("max-batch-size", "1", "max-in-flight-requests", "2");
+
+        Entity fd = Entity.at("/t;t/f;fd").build();
+        InventoryStructure.Builder struct = InventoryStructure.of(fd);
+        for (int i = 0; i < 50; ++i) {
+            struct.startChild(Entity.at("/t;t/f;fd/r;r" + i).build())
+                    .addChild(Entity.at("/t;t/f;fd/r;r" + i + "/m;m").build())
+                    .end();
+        }
+
+        SyncResult result = bounded.sync(fd.getPath(), SyncRequest.syncEverything(struct.build())).toBlocking()
+                .single();
+
+        Assert.assertEquals(101, result.getAdded());
+        Assert.assertEquals(2, bounded.getMaxInFlightSyncRequests());
+        Assert.assertTrue(bounded.getPeakInFlightSyncRequests() > 0);
+        Assert.assertTrue(bounded.getPeakInFlightSyncRequests() <= 2);
+        Assert.assertEquals(0, bounded.getInFlightSyncRequests());
+        Assert.assertEquals(0, bounded.getQueuedSyncStatements());
+    }
+
+    @Test
+    public void testDeleteSubtree() throws Exception {
+        testSync();
+
+        CanonicalPath r2 = CanonicalPath.fromString("/t;t/f;fd/r;r2");
+        waitFor(storage.delete(r2));
+
+        Assert.assertEquals(0, count(storage.findByPath(r2)));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m2"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m3"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m1"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/rt;rt1"))));
+
+        //the deleted subtree can be recreated
+        waitFor(storage.upsert(Entity.at(r2).build()));
+        waitFor(storage.upsert(Entity.at("/t;t/f;fd/r;r2/m;m2").build()));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m2"))));
+    }
+
+    @Test
+    public void testReencodePartition() throws Exception {
+        testSync();
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;t/f;fd/r;r1")));
+        waitFor(storage.delete(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m2")));
+
+        storage.reencodePartition("t", "fd").toBlocking().single();
+
+        //the positions are compact now, so there's nothing more to do
+        Assert.assertEquals(0, (int) storage.reencodePartition("t", "fd").toBlocking().single());
+
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m3"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/mt;mt1"))));
+
+        //new entities get the positions after the renumbered ones
+        waitFor(storage.upsert(Entity.at("/t;t/f;fd/r;r2/m;m4").build()));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m4"))));
+        Assert.assertEquals(0, (int) storage.reencodePartition("t", "fd").toBlocking().single());
+    }
+
+    @Test
+    public void testDeletedSlotsReused() throws Exception {
+        testSync();
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m2")));
+        waitFor(storage.upsert(Entity.at("/t;t/f;fd/r;r2/m;m4").build()));
+
+        //m4 took the slot of m2, so there are no gaps to get rid of
+        Assert.assertEquals(0, (int) storage.reencodePartition("t", "fd").toBlocking().single());
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m3"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m4"))));
+    }
+
+    @Test
+    public void testEntityCache() throws Exception {
+        testSync();
+
+        CanonicalPath r1 = CanonicalPath.fromString("/t;t/f;fd/r;r1");
+        storage.findByPath(r1).toBlocking().single();
+        long hits = storage.getEntityCacheHits();
+        storage.findByPath(r1).toBlocking().single();
+        Assert.assertEquals(hits + 1, storage.getEntityCacheHits());
+
+        //updates and deletes are visible even though the entity has been cached
+        waitFor(storage.upsert(new Entity(r1, "updated", Collections.emptyMap())));
+        Assert.assertEquals("updated", storage.findByPath(r1).toBlocking().single().getName());
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;t/f;fd/r;r1")));
+        Assert.assertEquals(0, count(storage.findByPath(r1)));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m1"))));
+    }
+
+    @Test
+    public void testEntityCacheNotStaleAfterConcurrentReads() throws Exception {
+        CanonicalPath r = CanonicalPath.fromString("/t;t/f;racing/r;r");
+        waitFor(storage.upsert(Entity.at(CanonicalPath.fromString("/t;t/f;racing")).build()));
+
+        for (int i = 0; i < 50; ++i) {
+            String name = "v" + i;
+
+            //the reads started before the write completes may finish after it invalidated the caches
+            Thread reader = new Thread(() -> {
+                for (int j = 0; j < 10; ++j) {
+                    storage.findByPath(r).toList().toBlocking().single();
+                }
+            });
+            reader.start();
+            waitFor(storage.upsert(new Entity(r, name, Collections.emptyMap())));
+            reader.join();
+
+            Assert.assertEquals(name, storage.findByPath(r).toBlocking().single().getName());
+        }
+    }
+
+    @Test
+    public void testMissingEntityCache() throws Exception {
+        testSync();
+
+        CanonicalPath r3 = CanonicalPath.fromString("/t;t/f;fd/r;r3");
+        Assert.assertEquals(0, count(storage.findByPath(r3)));
+        long hits = storage.getMissingEntityCacheHits();
+        Assert.assertEquals(0, count(storage.findByPath(r3)));
+        Assert.assertEquals(hits + 1, storage.getMissingEntityCacheHits());
+
+        //creating the entity makes it visible straight away
+        waitFor(storage.upsert(Entity.at("/t;t/f;fd/r;r3").build()));
+        Assert.assertEquals(1, count(storage.findByPath(r3)));
+    }
+
+    @Test
+    public void testFindChildren() throws Exception {
+        testSync();
+
+        CanonicalPath fd = CanonicalPath.fromString("/t;t/f;fd");
+        Page<Entity> resources = storage.findChildren(fd, SegmentType.r, 100, null).toBlocking().single();
+        Assert.assertEquals(new HashSet<>(Arrays.asList(Entity.at("/t;t/f;fd/r;r1").build(),
+                Entity.at("/t;t/f;fd/r;r2").build())), new HashSet<>(resources.getItems()));
+        Assert.assertNull(resources.getNextPageToken());
+
+        //read the metrics one by one
+        CanonicalPath r2 = CanonicalPath.fromString("/t;t/f;fd/r;r2");
+        Set<Entity> metrics = new HashSet<>();
+        String token = null;
+        do {
+            Page<Entity> page = storage.findChildren(r2, SegmentType.m, 1, token).toBlocking().single();
+            Assert.assertTrue(page.getItems().size() <= 1);
+            metrics.addAll(page.getItems());
+            token = page.getNextPageToken();
+        } while (token != null);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(Entity.at("/t;t/f;fd/r;r2/m;m2").build(),
+                Entity.at("/t;t/f;fd/r;r2/m;m3").build())), metrics);
+    }
+
+    @Test
+    public void testFindAncestors() throws Exception {
+        testSync();
+
+        List<CanonicalPath> ancestors = storage.findAncestors(CanonicalPath.fromString("/t;t/f;fd/r;r2/m;m2"))
+                .map(Entity::getPath).toList().toBlocking().single();
+
+        Assert.assertEquals(Arrays.asList(CanonicalPath.fromString("/t;t"), CanonicalPath.fromString("/t;t/f;fd"),
+                CanonicalPath.fromString("/t;t/f;fd/r;r2")), ancestors);
+        Assert.assertEquals("tenant",
+                storage.findAncestors(CanonicalPath.fromString("/t;t/f;fd")).toBlocking().single().getName());
+    }
+
+    @Test
+    public void testDeleteFeed() throws Exception {
+        testSync();
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;t/f;fd")));
+
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/r;r1/m;m1"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;t/f;fd/mt;mt1"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.of().tenant("t").get())));
+    }
+
     @Test
     @Ignore
     public void testBigSync() throws Exception {
@@ -203,6 +532,26 @@ public class BackendTest {
         Assert.assertEquals(0, count(storage.findOutRelationships(target, "rel")));
     }
 
+    @Test
+    public void testRelateAll() throws Exception {
+        CanonicalPath source = CanonicalPath.of().tenant("t").feed("f").get();
+        CanonicalPath target1 = CanonicalPath.of().tenant("t").feed("f2").get();
+        CanonicalPath target2 = CanonicalPath.of().tenant("t").feed("f3").get();
+
+        waitFor(storage.upsert(Entity.at(source).build()));
+        waitFor(storage.upsert(Entity.at(target1).build()));
+        waitFor(storage.upsert(Entity.at(target2).build()));
+
+        Map<Relationship, Throwable> failures = storage.relateAll(Arrays.asList(
+                new Relationship(source, target1, "rel", Collections.emptyMap()),
+                new Relationship(source, target2, "rel", Collections.emptyMap()))).toBlocking().single();
+
+        Assert.assertTrue(failures.isEmpty());
+        Assert.assertEquals(2, count(storage.findOutRelationships(source, "rel")));
+        Assert.assertEquals(1, count(storage.findInRelationships(target1, "rel")));
+        Assert.assertEquals(1, count(storage.findInRelationships(target2, "rel")));
+    }
+
     @Test
     public void testUpdateRelationship() throws Exception {
         CanonicalPath source = CanonicalPath.of().tenant("t").feed("f").get();
@@ -240,6 +589,178 @@ public class BackendTest {
         Assert.assertEquals(0, count(storage.findInRelationships(target, "rel")));
     }
 
+    @Test
+    public void testLoggedRelationshipWrites() throws Exception {
+        InventoryStorage logged = getLoggedRelationshipsStorage();
+        CanonicalPath source = CanonicalPath.of().tenant("t").feed("f").get();
+        CanonicalPath target = CanonicalPath.of().tenant("t").feed("f2").get();
+
+        waitFor(logged.upsert(Entity.at(source).build()));
+        waitFor(logged.upsert(Entity.at(target).build()));
+        waitFor(logged.relate(source, target, "rel", Collections.emptyMap()));
+
+        Assert.assertEquals(1, count(logged.findOutRelationships(source, "rel")));
+        Assert.assertEquals(1, count(logged.findInRelationships(target, "rel")));
+
+        Map<String, String> props = new HashMap<>(1);
+        props.put("a", "b");
+        waitFor(logged.updateRelationship(new Relationship(source, target, "rel", props)));
+
+        Assert.assertEquals("b", logged.findOutRelationships(source, "rel").toBlocking().single().getProperties()
+                .get("a"));
+        Assert.assertEquals("b", logged.findInRelationships(target, "rel").toBlocking().single().getProperties()
+                .get("a"));
+
+        waitFor(logged.delete(Relationship.componentsToCp(source, target, "rel")));
+
+        Assert.assertEquals(0, count(logged.findOutRelationships(source, "rel")));
+        Assert.assertEquals(0, count(logged.findInRelationships(target, "rel")));
+    }
+
+    @Test
+    public void testLoggedUpdateOfMissingRelationshipCreatesIt() throws Exception {
+        InventoryStorage logged = getLoggedRelationshipsStorage();
+        CanonicalPath source = CanonicalPath.of().tenant("t").feed("f").get();
+        CanonicalPath target = CanonicalPath.of().tenant("t").feed("f2").get();
+
+        waitFor(logged.upsert(Entity.at(source).build()));
+        waitFor(logged.upsert(Entity.at(target).build()));
+
+        Map<String, String> props = new HashMap<>(1);
+        props.put("a", "b");
+        waitFor(logged.updateRelationship(new Relationship(source, target, "rel", props)));
+
+        Relationship out = logged.findOutRelationships(source, "rel").toBlocking().single();
+        Assert.assertEquals(target, out.getTarget());
+        Assert.assertEquals("b", out.getProperties().get("a"));
+        Assert.assertEquals(source, logged.findInRelationships(target, "rel").toBlocking().single().getSource());
+
+        //the relationships written in the logged mode are deleted with their entities like any other
+        waitFor(logged.delete(source));
+        Assert.assertEquals(0, count(logged.findInRelationships(target, "rel")));
+    }
+
+    @Test
+    public void testDeleteEntityDeletesRelationships() throws Exception {
+        CanonicalPath source = CanonicalPath.of().tenant("t").feed("f").get();
+        CanonicalPath target = CanonicalPath.of().tenant("t").feed("f2").resource("r").get();
+        CanonicalPath other = CanonicalPath.of().tenant("t").feed("f3").get();
+
+        waitFor(storage.upsert(Entity.at(source).build()));
+        waitFor(storage.upsert(Entity.at(target.up()).build()));
+        waitFor(storage.upsert(Entity.at(target).build()));
+        waitFor(storage.upsert(Entity.at(other).build()));
+        waitFor(storage.relate(source, target, "rel", Collections.emptyMap()));
+        waitFor(storage.relate(target, other, "rel", Collections.emptyMap()));
+
+        waitFor(storage.delete(target.up()));
+
+        Assert.assertEquals(0, count(storage.findOutRelationships(source, "rel")));
+        Assert.assertEquals(0, count(storage.findInRelationships(target, "rel")));
+        Assert.assertEquals(0, count(storage.findOutRelationships(target, "rel")));
+        Assert.assertEquals(0, count(storage.findInRelationships(other, "rel")));
+    }
+
+    @Test
+    public void testDeleteRemovesRecycledChildIndices() throws Exception {
+        InventoryStorage leasing = createStorage("child-index-lease-size", "10");
+        CanonicalPath feed = CanonicalPath.of().tenant("t").feed("leased").get();
+        CanonicalPath resource = feed.modified().extend(SegmentType.r, "r").get();
+
+        waitFor(leasing.upsert(Entity.at(feed).build()));
+        waitFor(leasing.upsert(Entity.at(resource).build()));
+        waitFor(leasing.upsert(Entity.at(resource.modified().extend(SegmentType.m, "m").get()).build()));
+
+        Session session = TestCassandra.connect(configuration);
+        try {
+            //as if some other node gave back the indices it had leased
+            session.execute("INSERT INTO recycledChildIndices (parentPath, fromIndex, toIndex) VALUES (?, ?, ?)",
+                    resource.toString(), 5, 10);
+
+            waitFor(leasing.delete(feed));
+
+            //neither the recycled indices nor the unused indices leased to this node are kept for the deleted parents
+            for (CanonicalPath parent : Arrays.asList(feed, resource)) {
+                Assert.assertNull(session.execute("SELECT fromIndex FROM recycledChildIndices WHERE parentPath = ?",
+                        parent.toString()).one());
+            }
+            //but the leases are, so that the indices leased before the deletion are never handed out again
+            Assert.assertNotNull(session.execute("SELECT nextUnused FROM childIndexLease WHERE parentPath = ?",
+                    resource.toString()).one());
+        } finally {
+            session.getCluster().close();
+            leasing.close();
+        }
+    }
+
+    @Test
+    public void testFeedsStoredBeforeFeedTableRegistered() throws Exception {
+        String tenantId = "legacy-" + new Random().nextInt(Integer.MAX_VALUE);
+        CanonicalPath tenant = CanonicalPath.of().tenant(tenantId).get();
+        //the feed ID looks like a bucket of a feed but the feeds were stored under their unescaped IDs
+        CanonicalPath feed = tenant.modified().extend(SegmentType.f, "x<1>").get();
+        CanonicalPath resource = feed.modified().extend(SegmentType.r, "r").get();
+
+        Session session = TestCassandra.connect(configuration);
+        InventoryStorage upgraded = null;
+        try {
+            //the entity tree as stored by the versions without the feed table, the intervals are those of the tree
+            //paths [1], [1, 1] and [1, 1, 1]
+            insertLegacyEntity(session, tenantId, "<TENANT>", tenant, 2, 3, Arrays.asList(1));
+            insertLegacyEntity(session, tenantId, "x<1>", feed, 3, 4, Arrays.asList(1, 1));
+            insertLegacyEntity(session, tenantId, "x<1>", resource, 4, 5, Arrays.asList(1, 1, 1));
+            session.execute("DELETE FROM feed WHERE tenantId = ?", tenantId);
+            session.execute("DELETE FROM sys_config WHERE config_id = 'org.hawkular.inventory'" +
+                    " AND name = 'feeds-registered'");
+
+            upgraded = createStorage();
+
+            Row registered = session.execute("SELECT buckets, partitionKey FROM feed WHERE tenantId = ? AND" +
+                    " feedId = ?", tenantId, "x<1>").one();
+            Assert.assertNotNull(registered);
+            Assert.assertEquals("x<1>", registered.getString("partitionKey"));
+            Assert.assertEquals(1, registered.getInt("buckets"));
+
+            Assert.assertEquals(resource, upgraded.findByPath(resource).toBlocking().single().getPath());
+            Assert.assertEquals(Arrays.asList(tenant, feed), upgraded.findAncestors(resource)
+                    .map(Entity::getPath).toList().toBlocking().single());
+
+            waitFor(upgraded.delete(tenant));
+
+            Assert.assertNull(session.execute("SELECT entityPath FROM entityTree WHERE tenantId = ? AND feedId = ?",
+                    tenantId, "x<1>").one());
+            Assert.assertNull(session.execute("SELECT feedId FROM feed WHERE tenantId = ?", tenantId).one());
+        } finally {
+            session.getCluster().close();
+            if (upgraded != null) {
+                upgraded.close();
+            }
+        }
+    }
+
+    private static void insertLegacyEntity(Session session, String tenantId, String partition, CanonicalPath cp,
+                                           long lowNum, long lowDen, List<Integer> treePath) {
+        session.execute("INSERT INTO entityTree (tenantId, feedId, entityType, entityPath, lowNum, lowDen, highNum," +
+                " highDen, treePath, depth) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", tenantId, partition,
+                cp.getSegment().getElementType().toString(), cp.toString(), lowNum, lowDen, 1L, 1L, treePath,
+                treePath.size());
+    }
+
+    private InventoryStorage getLoggedRelationshipsStorage() {
+        if (loggedRelationshipsStorage == null) {
+            loggedRelationshipsStorage = createStorage("logged-relationship-writes", "true");
+        }
+
+        return loggedRelationshipsStorage;
+    }
+
+    /**
+     * Creates a storage with the injected configuration modified by the provided key-value pairs.
+     */
+    private InventoryStorage createStorage(String... settings) {
+        return new InventoryStorage(TestCassandra.storageConfiguration(configuration, settings));
+    }
+
     private int count(Observable<?> col) {
         return col.count().toBlocking().single();
     }
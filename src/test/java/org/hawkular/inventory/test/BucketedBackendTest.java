@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.inject.Inject;
+
+import org.hawkular.inventory.annotations.Configured;
+import org.hawkular.inventory.backend.InventoryStorage;
+import org.hawkular.inventory.logging.Log;
+import org.hawkular.inventory.model.Entity;
+import org.hawkular.inventory.model.InventoryStructure;
+import org.hawkular.inventory.model.Page;
+import org.hawkular.inventory.model.SyncRequest;
+import org.hawkular.inventory.paths.CanonicalPath;
+import org.hawkular.inventory.paths.SegmentType;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import rx.Observable;
+import rx.Observer;
+
+/**
+ * Runs the backend with the entities of the feeds spread over several buckets.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+@RunWith(Arquillian.class)
+public class BucketedBackendTest {
+    private static final int BUCKETS = 3;
+    private static final List<String> PARTITIONS_OF_FD = Arrays.asList("fd", "fd<1>", "fd<2>");
+
+    private static InventoryStorage storage;
+
+    @Inject @Configured
+    private Map<String, String> configuration;
+
+    @Deployment
+    public static WebArchive getDeployment() {
+        return Deployments.getFullHawkularInventoryWar();
+    }
+
+    @Before
+    public void createTenant() throws Exception {
+        if (storage == null) {
+            storage = createStorage(BUCKETS);
+        }
+
+        waitFor(storage.upsert(new Entity(CanonicalPath.of().tenant("bt").get(), "tenant", Collections.emptyMap())));
+    }
+
+    @After
+    public void dropTenant() throws Exception {
+        waitFor(storage.delete(CanonicalPath.of().tenant("bt").get()));
+    }
+
+    @Test
+    public void testEntitiesFoundInBuckets() throws Exception {
+        syncFeed();
+
+        for (int i = 1; i <= 6; ++i) {
+            Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r" + i))));
+            Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r" + i
+                    + "/m;m1"))));
+        }
+
+        List<CanonicalPath> ancestors = storage.findAncestors(CanonicalPath.fromString("/t;bt/f;fd/r;r4/m;m1"))
+                .map(Entity::getPath).toList().toBlocking().single();
+        Assert.assertEquals(Arrays.asList(CanonicalPath.fromString("/t;bt"), CanonicalPath.fromString("/t;bt/f;fd"),
+                CanonicalPath.fromString("/t;bt/f;fd/r;r4")), ancestors);
+    }
+
+    @Test
+    public void testBucketsReadByOtherNodes() throws Exception {
+        syncFeed();
+
+        //a fresh instance knows nothing about the feed and creates unbucketed feeds
+        InventoryStorage other = createStorage(1);
+        for (int i = 1; i <= 6; ++i) {
+            Assert.assertEquals(1, count(other.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r" + i
+                    + "/m;m1"))));
+        }
+
+        waitFor(other.upsert(Entity.at("/t;bt/f;fd/r;r7").build()));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r7"))));
+    }
+
+    @Test
+    public void testFindChildrenAcrossBuckets() throws Exception {
+        syncFeed();
+
+        CanonicalPath fd = CanonicalPath.fromString("/t;bt/f;fd");
+        List<Entity> resources = new ArrayList<>();
+        boolean bucketTokenSeen = false;
+        String token = null;
+        do {
+            Page<Entity> page = storage.findChildren(fd, SegmentType.r, 2, token).toBlocking().single();
+            Assert.assertTrue(page.getItems().size() <= 2);
+            resources.addAll(page.getItems());
+            token = page.getNextPageToken();
+            bucketTokenSeen |= token != null && token.matches("\\d+:.*");
+        } while (token != null);
+
+        Assert.assertTrue(bucketTokenSeen);
+        Assert.assertEquals(6, resources.size());
+        Assert.assertEquals(6, new HashSet<>(resources).size());
+    }
+
+    @Test
+    public void testDeleteAcrossBuckets() throws Exception {
+        syncFeed();
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;bt/f;fd/r;r1")));
+        waitFor(storage.delete(CanonicalPath.fromString("/t;bt/f;fd/r;r2")));
+
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r1/m;m1"))));
+        Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r2/m;m1"))));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r3/m;m1"))));
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;bt/f;fd")));
+
+        for (int i = 3; i <= 6; ++i) {
+            Assert.assertEquals(0, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r" + i
+                    + "/m;m1"))));
+        }
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.of().tenant("bt").get())));
+    }
+
+    @Test
+    public void testReencodeBucketedFeed() throws Exception {
+        syncFeed();
+
+        //the direct children of a bucketed feed keep their positions, so the gap is not a reason to re-encode
+        waitFor(storage.delete(CanonicalPath.fromString("/t;bt/f;fd/r;r3")));
+        Assert.assertEquals(0, reencodeFd());
+
+        waitFor(storage.delete(CanonicalPath.fromString("/t;bt/f;fd/r;r4/m;m1")));
+        Assert.assertTrue(reencodeFd() > 0);
+        Assert.assertEquals(0, reencodeFd());
+
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r4/m;m2"))));
+        waitFor(storage.upsert(Entity.at("/t;bt/f;fd/r;r4/m;m3").build()));
+        Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;fd/r;r4/m;m3"))));
+        Assert.assertEquals(0, reencodeFd());
+    }
+
+    @Test
+    public void testFeedIdLikeBucketNotMixedUp() throws Exception {
+        waitFor(storage.upsert(Entity.at("/t;bt/f;x").build()));
+        waitFor(storage.upsert(Entity.at("/t;bt/f;x<1>").build()));
+        for (int i = 1; i <= 6; ++i) {
+            waitFor(storage.upsert(Entity.at("/t;bt/f;x/r;r" + i).build()));
+            waitFor(storage.upsert(Entity.at("/t;bt/f;x<1>/r;r" + i).build()));
+        }
+
+        waitFor(storage.delete(CanonicalPath.of().tenant("bt").feed("x<1>").get()));
+
+        for (int i = 1; i <= 6; ++i) {
+            Assert.assertEquals(1, count(storage.findByPath(CanonicalPath.fromString("/t;bt/f;x/r;r" + i))));
+            Assert.assertEquals(0, count(storage.findByPath(
+                    CanonicalPath.of().tenant("bt").feed("x<1>").resource("r" + i).get())));
+        }
+    }
+
+    private void syncFeed() throws Exception {
+        Entity fd = Entity.at("/t;bt/f;fd").build();
+        InventoryStructure.Builder struct = InventoryStructure.of(fd);
+        for (int i = 1; i <= 6; ++i) {
+            struct.startChild(Entity.at("/t;bt/f;fd/r;r" + i).build())
+                    .addChild(Entity.at("/t;bt/f;fd/r;r" + i + "/m;m1").build())
+                    .addChild(Entity.at("/t;bt/f;fd/r;r" + i + "/m;m2").build())
+                    .end();
+        }
+
+        waitFor(storage.sync(fd.getPath(), SyncRequest.syncEverything(struct.build())));
+    }
+
+    private int reencodeFd() {
+        int changed = 0;
+        for (String partition : PARTITIONS_OF_FD) {
+            changed += storage.reencodePartition("bt", partition).toBlocking().single();
+        }
+
+        return changed;
+    }
+
+    private InventoryStorage createStorage(int buckets) {
+        return new InventoryStorage(TestCassandra.storageConfiguration(configuration, "feed-buckets",
+                Integer.toString(buckets)));
+    }
+
+    private int count(Observable<?> col) {
+        return col.count().toBlocking().single();
+    }
+
+    private <T> Observer<T> onceFinished(Runnable action) {
+        return new Observer<T>() {
+            @Override public void onCompleted() {
+                action.run();
+            }
+
+            @Override public void onError(Throwable e) {
+                Log.LOG.warn("Operation threw an error", e);
+                action.run();
+            }
+
+            @Override public void onNext(T o) {
+            }
+        };
+    }
+
+    private void waitFor(Observable<?> cold) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+
+        cold.subscribe(onceFinished(latch::countDown));
+
+        latch.await();
+    }
+}
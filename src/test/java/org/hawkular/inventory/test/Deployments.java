@@ -28,7 +28,7 @@ import org.jboss.shrinkwrap.resolver.api.maven.Maven;
  * @author Lukas Krejci
  * @since 2.0.0
  */
-final class Deployments {
+public final class Deployments {
 
     private Deployments() {
 
@@ -52,6 +52,7 @@ final class Deployments {
                         "org.hawkular.inventory.logging",
                         "org.hawkular.inventory.serialization",
                         "org.hawkular.inventory.serialization.mixins")
+                .addClass(TestCassandra.class)
                 .addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml")
                 .addAsResource(new FileAsset(schema), "schema/cassalog-schema.groovy")
                 .addAsResource(new FileAsset(configProps), "hawkular-inventory.properties")
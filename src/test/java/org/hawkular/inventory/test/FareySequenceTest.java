@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.hawkular.inventory.backend.FareySequence;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public class FareySequenceTest {
+
+    @Test
+    public void testFirstLevels() {
+        Assert.assertEquals(interval(1, 2, 1, 1), FareySequence.intervalForPath(Collections.emptyList()));
+        Assert.assertEquals(interval(2, 3, 1, 1), FareySequence.intervalForPath(Arrays.asList(1)));
+        Assert.assertEquals(interval(3, 4, 1, 1), FareySequence.intervalForPath(Arrays.asList(1, 1)));
+        Assert.assertEquals(interval(5, 7, 3, 4), FareySequence.intervalForPath(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void testSameAsIterativeMediants() {
+        Random rand = new Random(42);
+
+        for (int i = 0; i < 10_000; ++i) {
+            List<Integer> path = new ArrayList<>();
+            path.add(1);
+            int depth = rand.nextInt(6);
+            for (int d = 0; d < depth; ++d) {
+                path.add(1 + rand.nextInt(rand.nextBoolean() ? 10 : 1000));
+            }
+
+            Assert.assertEquals("Different intervals for path " + path, iterativeIntervalForPath(path),
+                    FareySequence.intervalForPath(path));
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testOverflowDetected() {
+        FareySequence.intervalForPath(Arrays.asList(1, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCompareSameAsDecimal() {
+        Random rand = new Random(42);
+
+        for (int i = 0; i < 10_000; ++i) {
+            long aDen = 1 + (rand.nextLong() & Long.MAX_VALUE) % Long.MAX_VALUE;
+            long bDen = 1 + (rand.nextLong() & Long.MAX_VALUE) % Long.MAX_VALUE;
+            FareySequence.RationalNumber a = new FareySequence.RationalNumber((rand.nextLong() & Long.MAX_VALUE) % aDen,
+                    aDen);
+            FareySequence.RationalNumber b = new FareySequence.RationalNumber((rand.nextLong() & Long.MAX_VALUE) % bDen,
+                    bDen);
+
+            int exact = Integer.signum(a.toDecimal().compareTo(b.toDecimal()));
+            if (exact != 0) {
+                Assert.assertEquals("Different ordering of " + a + " and " + b, exact, a.compareTo(b));
+            }
+        }
+    }
+
+    @Test
+    public void testCompareExact() {
+        FareySequence.RationalNumber a = new FareySequence.RationalNumber(Long.MAX_VALUE - 1, Long.MAX_VALUE);
+        FareySequence.RationalNumber b = new FareySequence.RationalNumber(Long.MAX_VALUE - 2, Long.MAX_VALUE - 1);
+
+        Assert.assertEquals(1, a.compareTo(b));
+        Assert.assertEquals(-1, b.compareTo(a));
+        Assert.assertEquals(0, a.compareTo(new FareySequence.RationalNumber(Long.MAX_VALUE - 1, Long.MAX_VALUE)));
+        Assert.assertEquals(0,
+                new FareySequence.RationalNumber(1, 2).compareTo(new FareySequence.RationalNumber(2, 4)));
+    }
+
+    /**
+     * The original implementation doing one mediant per step.
+     */
+    private static FareySequence.Interval iterativeIntervalForPath(List<Integer> treePath) {
+        FareySequence.RationalNumber low = new FareySequence.RationalNumber(1, 2);
+        FareySequence.RationalNumber high = new FareySequence.RationalNumber(1, 1);
+
+        for (int treeIdx : treePath) {
+            FareySequence.RationalNumber lastHigh = high;
+            for (long ti = 0; ti < treeIdx; ++ti) {
+                lastHigh = high;
+                high = high.mediant(low);
+            }
+
+            low = high;
+            high = lastHigh;
+        }
+
+        return new FareySequence.Interval(low, high);
+    }
+
+    private static FareySequence.Interval interval(long lowNum, long lowDen, long highNum, long highDen) {
+        return new FareySequence.Interval(new FareySequence.RationalNumber(lowNum, lowDen),
+                new FareySequence.RationalNumber(highNum, highDen));
+    }
+}
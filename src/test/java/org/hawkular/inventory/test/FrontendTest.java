@@ -21,9 +21,16 @@ import static javax.ws.rs.client.Entity.json;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
@@ -32,7 +39,10 @@ import javax.ws.rs.core.Response;
 
 import org.hawkular.inventory.model.Entity;
 import org.hawkular.inventory.model.InventoryStructure;
+import org.hawkular.inventory.model.Page;
+import org.hawkular.inventory.model.Relationship;
 import org.hawkular.inventory.model.SyncRequest;
+import org.hawkular.inventory.model.SyncResult;
 import org.hawkular.inventory.paths.CanonicalPath;
 import org.hawkular.inventory.paths.SegmentType;
 import org.hawkular.inventory.serialization.JacksonConfig;
@@ -46,6 +56,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -90,6 +101,28 @@ public class FrontendTest {
         }
     }
 
+    @Test
+    @RunAsClient
+    public void testConcurrentRequestsOfNewTenant(@ArquillianResteasyResource("") WebTarget webTarget)
+            throws Exception {
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                responses.add(request(webTarget.path("/entity/t;" + tenantId)).async().get());
+            }
+
+            Entity expected = new Entity(CanonicalPath.of().tenant(tenantId).get(), null, null);
+            for (Future<Response> f : responses) {
+                onResponse(f.get(), response -> {
+                    Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+                    Assert.assertEquals(expected, readResponse(response, Entity.class));
+                });
+            }
+        } finally {
+            deleteTenant(webTarget);
+        }
+    }
+
     @Test
     @RunAsClient
     public void testEntityCreate(@ArquillianResteasyResource("") WebTarget webTarget) throws Exception {
@@ -208,7 +241,12 @@ public class FrontendTest {
 
             onResponse(request(webTarget.path("/sync/f;feed")).post(json(data)),
                     response -> {
-                        Assert.assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+                        Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+                        SyncResult result = readResponse(response, SyncResult.class);
+                        Assert.assertEquals(8, result.getAdded());
+                        Assert.assertEquals(0, result.getUpdated());
+                        Assert.assertEquals(0, result.getDeleted());
+                        Assert.assertEquals(0, result.getUnchanged());
                     });
 
             Entity feed = Entity.at(CanonicalPath.of().tenant(tenantId).feed("feed").get()).build();
@@ -239,6 +277,214 @@ public class FrontendTest {
         }
     }
 
+    @Test
+    @RunAsClient
+    public void testBulkCreateRelationships(@ArquillianResteasyResource("") WebTarget webTarget) throws Exception {
+        try {
+            for (String feed : Arrays.asList("f1", "f2")) {
+                onResponse(request(webTarget.path("/entity/f;" + feed))
+                                .post(entity(new Entity.Blueprint(null, feed, null), MediaType.APPLICATION_JSON)),
+                        response -> Assert.assertEquals(Response.Status.CREATED.getStatusCode(),
+                                response.getStatus()));
+            }
+
+            CanonicalPath f1 = CanonicalPath.of().tenant(tenantId).feed("f1").get();
+            CanonicalPath f2 = CanonicalPath.of().tenant(tenantId).feed("f2").get();
+            CanonicalPath foreign = CanonicalPath.of().tenant(UUID.randomUUID().toString()).feed("f").get();
+
+            Map<String, String> props = new HashMap<>();
+            props.put("a", "b");
+            Relationship valid = new Relationship(f1, f2, "rel", props);
+            Relationship crossTenant = new Relationship(foreign, f2, "rel", Collections.emptyMap());
+
+            ObjectMapper mapper = new JacksonConfig().getMapper();
+            String data = mapper.writeValueAsString(Arrays.asList(valid, crossTenant));
+
+            onResponse(request(webTarget.path("/relationship/bulk")).post(json(data)), response -> {
+                Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+                Map<?, ?> statuses = readResponse(response, Map.class);
+                Assert.assertEquals(2, statuses.size());
+                Assert.assertEquals(Response.Status.CREATED.getStatusCode(),
+                        statuses.get(valid.getPath().toString()));
+                Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(),
+                        statuses.get(crossTenant.getPath().toString()));
+            });
+
+            for (String invalid : Arrays.asList("null", "[null]")) {
+                onResponse(request(webTarget.path("/relationship/bulk")).post(json(invalid)),
+                        response -> Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(),
+                                response.getStatus()));
+            }
+        } finally {
+            deleteTenant(webTarget);
+        }
+    }
+
+    @Test
+    @RunAsClient
+    public void testChildrenPaging(@ArquillianResteasyResource("") WebTarget webTarget) throws Exception {
+        try {
+            syncFeedWithResources(webTarget, 5);
+
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < 5; ++i) {
+                expected.add("r" + i);
+            }
+
+            Set<String> found = new HashSet<>();
+            String pageToken = null;
+            int pages = 0;
+            do {
+                WebTarget target = webTarget.path("/children/f;feed").queryParam("type", "r")
+                        .queryParam("pageSize", 2);
+                if (pageToken != null) {
+                    target = target.queryParam("pageToken", pageToken);
+                }
+
+                Page<Entity> page = readPage(target);
+                Assert.assertTrue(page.getItems().size() <= 2);
+                page.getItems().forEach(e -> Assert.assertTrue("Duplicate child " + e,
+                        found.add(e.getPath().getSegment().getElementId())));
+                pageToken = page.getNextPageToken();
+                ++pages;
+            } while (pageToken != null);
+
+            Assert.assertEquals(expected, found);
+            Assert.assertTrue(pages >= 3);
+        } finally {
+            deleteTenant(webTarget);
+        }
+    }
+
+    @Test
+    @RunAsClient
+    public void testChildrenPageSizeCapped(@ArquillianResteasyResource("") WebTarget webTarget) throws Exception {
+        try {
+            syncFeedWithResources(webTarget, 1001);
+
+            //the default maximum page size is 1000
+            Page<Entity> first = readPage(webTarget.path("/children/f;feed").queryParam("type", "r")
+                    .queryParam("pageSize", 5000));
+            Assert.assertEquals(1000, first.getItems().size());
+            Assert.assertNotNull(first.getNextPageToken());
+
+            Page<Entity> second = readPage(webTarget.path("/children/f;feed").queryParam("type", "r")
+                    .queryParam("pageSize", 5000).queryParam("pageToken", first.getNextPageToken()));
+            Assert.assertEquals(1, second.getItems().size());
+            Assert.assertNull(second.getNextPageToken());
+        } finally {
+            deleteTenant(webTarget);
+        }
+    }
+
+    @Test
+    @RunAsClient
+    public void testChildrenRequestValidation(@ArquillianResteasyResource("") WebTarget webTarget) throws Exception {
+        try {
+            syncFeedWithResources(webTarget, 3);
+
+            for (String type : Arrays.asList("r", "resource", "Resource")) {
+                Page<Entity> page = readPage(webTarget.path("/children/f;feed").queryParam("type", type));
+                Assert.assertEquals("Unexpected children of type " + type, 3, page.getItems().size());
+                page.getItems().forEach(e -> Assert.assertEquals(SegmentType.r,
+                        e.getPath().getSegment().getElementType()));
+            }
+
+            Page<Entity> metricTypes = readPage(webTarget.path("/children/f;feed").queryParam("type", "metricType"));
+            Assert.assertEquals(1, metricTypes.getItems().size());
+            Assert.assertEquals("mt1", metricTypes.getItems().get(0).getPath().getSegment().getElementId());
+
+            List<WebTarget> invalid = Arrays.asList(
+                    webTarget.path("/children/f;feed"),
+                    webTarget.path("/children/f;feed").queryParam("type", "nonsense"),
+                    webTarget.path("/children/f;feed").queryParam("type", "feed"),
+                    webTarget.path("/children/f;feed").queryParam("type", "r").queryParam("pageSize", 0),
+                    webTarget.path("/children/f;feed").queryParam("type", "r").queryParam("pageSize", -1));
+
+            for (WebTarget target : invalid) {
+                onResponse(request(target).get(), response -> Assert.assertEquals("Unexpected status of " +
+                        target.getUri(), Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus()));
+            }
+        } finally {
+            deleteTenant(webTarget);
+        }
+    }
+
+    @Test
+    @RunAsClient
+    public void testAncestors(@ArquillianResteasyResource("") WebTarget webTarget) throws Exception {
+        try {
+            InventoryStructure structure = InventoryStructure.of(SegmentType.f, Entity.blueprint("feed").build())
+                    .startChild(SegmentType.r, Entity.blueprint("r1").build())
+                    /**/.startChild(SegmentType.r, Entity.blueprint("r2").build())
+                    /**/    .addChild(SegmentType.m, Entity.blueprint("m1").build())
+                    /**/.end()
+                    .end()
+                    .build();
+
+            ObjectMapper mapper = new JacksonConfig().getMapper();
+            String data = mapper.writeValueAsString(SyncRequest.syncEverything(structure));
+
+            onResponse(request(webTarget.path("/sync/f;feed")).post(json(data)),
+                    response -> Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus()));
+
+            CanonicalPath tenant = CanonicalPath.of().tenant(tenantId).get();
+            CanonicalPath feed = tenant.modified().extend(SegmentType.f, "feed").get();
+            CanonicalPath r1 = feed.modified().extend(SegmentType.r, "r1").get();
+            CanonicalPath r2 = r1.modified().extend(SegmentType.r, "r2").get();
+
+            //from the tenant down to the parent
+            Assert.assertEquals(Arrays.asList(tenant, feed, r1, r2),
+                    ancestorPaths(webTarget, "/f;feed/r;r1/r;r2/m;m1"));
+            Assert.assertEquals(Collections.singletonList(tenant), ancestorPaths(webTarget, "/f;feed"));
+            //the missing ancestors are left out
+            Assert.assertEquals(Arrays.asList(tenant, feed), ancestorPaths(webTarget, "/f;feed/r;nonexistent/m;m1"));
+        } finally {
+            deleteTenant(webTarget);
+        }
+    }
+
+    private List<CanonicalPath> ancestorPaths(WebTarget webTarget, String path) throws IOException {
+        List<Entity> ancestors = get(webTarget.path("/ancestors" + path), new TypeReference<List<Entity>>() {});
+        List<CanonicalPath> ret = new ArrayList<>(ancestors.size());
+        ancestors.forEach(e -> ret.add(e.getPath()));
+        return ret;
+    }
+
+    /**
+     * Syncs the feed called "feed" with the resources r0 to r(count - 1) and the metric type mt1 under it.
+     */
+    private void syncFeedWithResources(WebTarget webTarget, int count) throws Exception {
+        InventoryStructure.Builder structure = InventoryStructure.of(SegmentType.f, Entity.blueprint("feed").build())
+                .addChild(SegmentType.mt, Entity.blueprint("mt1").build());
+        for (int i = 0; i < count; ++i) {
+            structure.addChild(SegmentType.r, Entity.blueprint("r" + i).build());
+        }
+
+        ObjectMapper mapper = new JacksonConfig().getMapper();
+        String data = mapper.writeValueAsString(SyncRequest.syncEverything(structure.build()));
+
+        onResponse(request(webTarget.path("/sync/f;feed")).post(json(data)), response -> {
+            Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            Assert.assertEquals(count + 2, readResponse(response, SyncResult.class).getAdded());
+        });
+    }
+
+    private Page<Entity> readPage(WebTarget target) throws IOException {
+        return get(target, new TypeReference<Page<Entity>>() {});
+    }
+
+    private <T> T get(WebTarget target, TypeReference<T> type) throws IOException {
+        Response response = request(target).get();
+        try {
+            Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            String data = response.readEntity(String.class);
+            return new JacksonConfig().getMapper().readValue(data, type);
+        } finally {
+            response.close();
+        }
+    }
+
     private Invocation.Builder request(WebTarget target) {
         return target.request(MediaType.APPLICATION_JSON).header("Hawkular-Tenant", tenantId);
     }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hawkular.inventory.rest.SupportDataProducer;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+
+/**
+ * Gives the tests access to the Cassandra the inventory under test is configured to use.
+ *
+ * @author Lukas Krejci
+ * @since 2.0.0
+ */
+public final class TestCassandra {
+
+    private TestCassandra() {
+
+    }
+
+    /**
+     * @param properties the injected configuration properties
+     * @param settings   the storage configuration keys and values to override
+     * @return the configuration to create an additional storage with
+     */
+    public static Map<String, String> storageConfiguration(Map<String, String> properties, String... settings) {
+        Map<String, String> conf = new HashMap<>(SupportDataProducer.getStorageConfiguration(properties));
+        for (int i = 0; i < settings.length; i += 2) {
+            conf.put(settings[i], settings[i + 1]);
+        }
+
+        return conf;
+    }
+
+    /**
+     * Connects to the inventory keyspace. The caller is responsible for closing the cluster of the returned session.
+     *
+     * @param properties the injected configuration properties
+     */
+    public static Session connect(Map<String, String> properties) {
+        Map<String, String> conf = storageConfiguration(properties);
+
+        Cluster.Builder builder = new Cluster.Builder().withoutJMXReporting();
+        Arrays.stream(conf.getOrDefault("nodes", "127.0.0.1").split(",")).forEach(builder::addContactPoint);
+        if (conf.containsKey("port")) {
+            builder.withPort(Integer.parseInt(conf.get("port")));
+        }
+
+        return builder.build().connect(conf.getOrDefault("keyspace", "hawkular_inventory"));
+    }
+}